@@ -1,22 +1,70 @@
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import javax.net.ssl.SSLContext;
 
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPConnectionClosedException;
 import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPFileEntryParser;
+import org.apache.commons.net.ftp.FTPListParseEngine;
 import org.apache.commons.net.ftp.FTPReply;
-import org.apache.commons.net.io.CopyStreamEvent;
+import org.apache.commons.net.ftp.parser.DefaultFTPFileEntryParserFactory;
+import org.apache.commons.net.ftp.parser.MLSxEntryParser;
 import org.apache.commons.net.io.CopyStreamListener;
 import org.apache.commons.net.PrintCommandListener;
 
@@ -26,7 +74,7 @@ import org.apache.commons.net.PrintCommandListener;
  * @author Luis Guillermo Pedroza-Soto
  */
 public class Assn3 {
-    public static final String help = "Expected Parameters: <hostname> <username:password> [commands]";
+    public static final String help = "Expected Parameters: <hostname|ftpes://hostname> <username:password> [commands]";
     public static final String commands = "The following commands are supported: \n"
             + "ls : list contents of remote directory\n" + "cd 'directory name' : change to the remote directory\n"
             + "cd .. : change remote directory to its parent\n" + "delete 'file name' : delete the remote file\n"
@@ -35,7 +83,204 @@ public class Assn3 {
             + "put 'file path' : send the local file to the current working directory\n"
             + "put 'directory path' 'remote path': send the local directory recursively\n"
             + "mkdir 'directory name' : make the directory on remote machine\n"
-            + "rmdir 'directory name' : remove the remote directory recursively\n";
+            + "rmdir 'directory name' : remove the remote directory recursively\n"
+            + "set sessions 'count' : get/put/rmdir directories over this many parallel sessions\n"
+            + "set segments 'count' : get large files as this many byte ranges in parallel\n"
+            + "set segmentsize 'bytes' : smallest byte range worth its own session, e.g. 64m\n"
+            + "set resume 'on|off' : continue partial files and skip files an interrupted get/put already did\n"
+            + "sync get 'directory name' : receive only the new or changed files of the remote directory\n"
+            + "sync put 'directory path' 'remote path' : send only the new or changed files of the local directory\n"
+            + "set syncdelete 'on|off' : let sync delete files that no longer exist on the source side\n"
+            + "set cachettl 'seconds' : reuse remote directory listings for this long, 0 to always ask the server\n"
+            + "set cachesize 'count' : number of remote directory listings kept in the cache\n"
+            + "set nio 'on|off' : move file data between the socket and the file with NIO channels\n"
+            + "set buffer 'bytes' : size of the transfer and socket buffers, e.g. 4m\n"
+            + "set keepalive 'seconds' : send NOOP after this long without a command while waiting for one\n"
+            + "script 'file path' : run the commands in the file, one per line, '-' reads them from stdin\n"
+            + "serve 'port' : keep the sessions open and run the commands sent to this local port\n"
+            + "shutdown : stop serving once the current client is done\n"
+            + "set compress 'off|on|1-9' : deflate get/put data with MODE Z at this level, skipping compressed files\n"
+            + "set metrics 'file path|-|off' : write the run's transfer metrics as JSON when it ends, '-' for stdout\n"
+            + "set schedule 'size|fifo' : start the largest files first when transferring over several sessions, or go in listing order\n"
+            + "set threads 'platform|virtual' : run the sessions' transfers on platform threads or on virtual threads (Java 21+)\n"
+            + "set verify 'off|crc32|crc32c|md5|sha256' : check every transferred file against the server's checksum\n"
+            + "follow 'file or directory name' : keep fetching what is appended to the remote file, or to each file of the directory\n"
+            + "set followinterval 'seconds' : time between two polls of a followed file or directory\n"
+            + "set followpolls 'count' : stop following after this many polls, 0 to follow until interrupted\n"
+            + "index 'directory name' : crawl the remote directory into a local index, listing only directories that changed\n"
+            + "reindex 'directory name' : crawl the remote directory into a local index, listing every directory\n"
+            + "find 'directory name' 'pattern' : print the indexed files and directories whose name matches, e.g. '*.csv'\n"
+            + "du 'directory name' : print the indexed bytes and files under each sub directory and in total\n"
+            + "set indexrefresh 'on|off' : let find and du refresh the index before answering instead of using it as saved\n"
+            + "get - 'file or directory name' : write the remote file, or the directory as a tar archive, to stdout\n"
+            + "put - 'remote path' : store what is read from stdin as the remote file\n"
+            + "fxp 'host[:port]' 'user:pass' 'source path' 'target path' : copy a file or directory to another server, server to server\n"
+            + "set retries 'count' : reconnect a dropped session with backoff and repeat what it was doing, up to this many times\n"
+            + "set healthcheck 'seconds' : check a pooled session with NOOP before reusing it after this long idle\n"
+            + "set tlsreuse 'on|off' : let FTPS data connections resume the control connection's TLS session instead of a full handshake each\n";
+
+    /**
+     * Number of logged-in sessions used by the recursive transfers, 1 keeps them on the main session.
+     */
+    private static int sessions = 1;
+
+    /**
+     * Number of byte ranges a single large file is retrieved in, 1 keeps it on one stream.
+     */
+    private static int segments = 1;
+
+    /**
+     * Smallest byte range that is given its own session by a segmented download.
+     */
+    private static long segmentSize = 16L * 1024 * 1024;
+
+    /**
+     * Whether partial files are continued from where they stopped instead of starting over.
+     */
+    private static boolean resume = false;
+
+    /**
+     * Journal of the recursive transfer in progress when resuming is enabled, null otherwise.
+     */
+    private static TransferJournal journal;
+
+    /**
+     * Whether sync deletes files from the target that no longer exist on the source.
+     */
+    private static boolean syncDelete = false;
+
+    /**
+     * Remote directory listings shared by every command and session of the run.
+     */
+    private static final ListingCache listingCache = new ListingCache(30000, 1000);
+
+    /**
+     * Working directory of the main session as last reported by PWD, null until asked or after a cd.
+     */
+    private static String workingDir;
+
+    /**
+     * The directories the main session changed to since its working directory was last known, starting with that
+     * directory once PWD was asked, so a reconnected main session can be taken back to where it was.
+     */
+    private static final List<String> directoryTrail = new ArrayList<String>();
+
+    /**
+     * Number of times a dropped session is reconnected and the command or transfer it was running repeated.
+     */
+    private static int retries = 3;
+
+    /**
+     * Idle time after which a pooled session is checked with NOOP before it is used again.
+     */
+    private static long healthCheckSeconds = 15;
+
+    /**
+     * Whether the data connections of FTPS sessions resume the TLS session of their control connection instead of
+     * paying a full handshake each. Turning it off is meant for measuring the difference, or for a server that
+     * mishandles resumption.
+     */
+    private static boolean tlsReuse = true;
+
+    /**
+     * Whether file data is moved through FileChannels (transferTo for uploads, a direct buffer for downloads)
+     * instead of commons-net's stream copy.
+     */
+    private static boolean nio = false;
+
+    /**
+     * Size of the NIO transfer buffers and of the data sockets' send and receive buffers. The stream path keeps
+     * commons-net's small default buffers, which would otherwise be allocated this large for every file.
+     */
+    private static int bufferSize = 1024 * 1024;
+
+    /**
+     * Direct and heap transfer buffers, taken for each file moved and kept for reuse up to one of each per session.
+     */
+    private static final BufferPool buffers = new BufferPool(sessions);
+
+    /**
+     * Latencies, throughput and failures of every session of the run, also published over JMX.
+     */
+    private static final TransferMetrics metrics = new TransferMetrics();
+
+    /**
+     * Whether parallel transfers are scheduled by size, largest first with small files alongside, instead of in the
+     * order they are found.
+     */
+    private static boolean scheduleBySize = true;
+
+    /**
+     * Creates the workers of the parallel transfers, null for platform threads. Virtual threads let hundreds of
+     * sessions wait on round trips without a platform thread each.
+     */
+    private static ThreadFactory transferThreads;
+
+    /**
+     * Checks every transferred file against the server's digest, null when verification is off.
+     */
+    private static ChecksumVerifier verifier;
+
+    /**
+     * Decides which transfers are deflated with MODE Z and counts the savings, null when compression is off.
+     */
+    private static TransferCompression compression;
+
+    /**
+     * Where the metrics are written as JSON at the end of the run, "-" for stdout, null for nowhere.
+     */
+    private static String metricsPath;
+
+    /**
+     * Idle time after which a script or server waiting for its next command sends NOOP to keep the sessions open.
+     */
+    private static long keepAliveSeconds = 60;
+
+    /**
+     * Time between two polls of a followed file or directory.
+     */
+    private static long followSeconds = 5;
+
+    /**
+     * Number of polls after which follow returns, 0 to follow until the process is interrupted.
+     */
+    private static long followPolls = 0;
+
+    /**
+     * Whether find and du refresh the index of the directory they are asked about before answering.
+     */
+    private static boolean indexRefresh = false;
+
+    /**
+     * Standard output and input of the process as channels, for get - and put -, opened on first use.
+     */
+    private static WritableByteChannel standardOutput;
+    private static ReadableByteChannel standardInput;
+
+    /**
+     * Whether serve keeps accepting clients, cleared by the shutdown command.
+     */
+    private static volatile boolean serving;
+
+    /**
+     * Whether the commands come from a script or a serve client, whose stdin and stdout are not free for get - and
+     * put -.
+     */
+    private static boolean scripted;
+
+    /**
+     * Listings parsed by commons-net are read in pages of this many entries, and only listings up to this size are
+     * cached, bigger ones being spooled to disk when they must be received completely before being handled.
+     */
+    private static final int LISTING_PAGE = 1000;
+    private static final int CACHEABLE_ENTRIES = 10000;
+
+    /**
+     * Something done with each entry of a remote listing as it is read.
+     */
+    private interface RemoteFileHandler {
+        void handle(FTPFile aFile) throws IOException;
+    }
 
     /**
      * Thee main, the pinnacle of all the awesome sauce.
@@ -49,17 +294,45 @@ public class Assn3 {
             System.exit(1);
         }
 
-        boolean binaryTransfer = true, error = false, localActive = false, verbose = true;
+        boolean binaryTransfer = true, error = false, localActive = false;
 
         int base = 0;
         // The ++ is used after the integer was that the value is read first and then incremented, therefore in this case it will get args[0] then increment base by 1, this will be used several times throughout
         String server = args[base++];
+        // ftpes:// asks for explicit TLS on the control connection and PROT P on every data connection
+        boolean secure = server.regionMatches(true, 0, "ftpes://", 0, 8);
+        if (secure) {
+            server = server.substring(8);
+        }
         int port = 21;
         String credentials[] = args[base++].split(":");
         String user = credentials[0];
         String pass = credentials[1];
 
-        final FTPClient ftp = new FTPClient();
+        // get - writes data to stdout, so everything the client prints goes to stderr from the start
+        for (int i = base; i + 1 < args.length; i++) {
+            if (args[i].equalsIgnoreCase("get") && args[i + 1].equals("-")) {
+                System.setOut(System.err);
+                break;
+            }
+        }
+
+        SSLContext tls = null;
+        if (secure) {
+            try {
+                tls = SecureFTPClient.defaultContext();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+        // the pool's sessions keep their TLS sessions in the same context as the main session
+        final FTPClient ftp = tls != null ? new SecureFTPClient(tls, metrics) : new StreamingFTPClient();
+        // Extra sessions for the parallel modes are only opened once a command needs them
+        final SessionPool pool = new SessionPool(server, port, user, pass, metrics);
+        pool.setSecure(tls);
+        metrics.register("ftpclient:type=TransferMetrics");
+        metrics.instrument(ftp);
         try {
             int reply;
             // Port was specified
@@ -119,457 +392,3928 @@ public class Assn3 {
                     ftp.enterLocalPassiveMode();
                 }
 
-                // Progress bar for downloads
-                if (verbose) {
-                    ftp.setCopyStreamListener(createListener());
+
+                runCommands(ftp, pool, args, base);
+
+                ftp.logout();
+            }
+        } catch (FTPConnectionClosedException e) {
+            error = true;
+            System.err.println("Server closed connection.");
+            e.printStackTrace();
+        } catch (IOException e) {
+            error = true;
+            e.printStackTrace();
+        } finally {
+            pool.close();
+            if (ftp.isConnected()) {
+                try {
+                    ftp.disconnect();
+                } catch (IOException f) {
+                    // No idea how you got here.
                 }
+            }
+            writeMetrics();
+        }
+        System.exit(error ? 1 : 0);
+    }
 
-                // cmd is instantiated outside of the try-catch so it can still be referenced in the catch block to alert the user of it's misuse
-                String cmd = "";
+    /**
+     * Executes commands in FIFO order, reading each command and its parameters from the array.
+     * 
+     * @param ftp
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions.
+     * @param args
+     *          The commands and their parameters.
+     * @param base
+     *          Index of the first command.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static void runCommands(final FTPClient ftp, final SessionPool pool, String[] args, int base)
+            throws IOException {
+        // cmd is instantiated outside of the try-catch so it can still be referenced in the catch block to alert the user of it's misuse
+        String cmd = "";
 
-                // This is wrapped inside a try-catch statement to prevent index out of bound issues, in the event the user did not supply the correct amount of parameters
+        // This is wrapped inside a try-catch statement to prevent index out of bound issues, in the event the user did not supply the correct amount of parameters
+        try {
+            int attempt = 0;
+            while (base < args.length) {
+                int start = base;
+                cmd = args[base++];
                 try {
-                    while (base < args.length) {
-                        cmd = args[base++];
-                        // LS command: list directory
-                        if (cmd.equalsIgnoreCase("ls")) {
-                            listDirectory(ftp);
+                    // LS command: list directory
+                    if (cmd.equalsIgnoreCase("ls")) {
+                        listDirectory(ftp);
+                    }
+                    // CD command: change directory
+                    else if (cmd.equalsIgnoreCase("cd")) {
+                        String dir = args[base++];
+                        boolean success = changeWorkingDirectory(ftp, dir);
+                        workingDir = null;
+
+                        if (success) {
+                            directoryTrail.add(dir);
+                            System.out.println("Successful change of working directory!");
+                        } else {
+                            System.err.println("Unable to change the working directory!");
                         }
-                        // CD command: change directory
-                        else if (cmd.equalsIgnoreCase("cd")) {
-                            String dir = args[base++];
-                            boolean success = changeWorkingDirectory(ftp, dir);
+                    }
+                    // DELETE command
+                    else if (cmd.equalsIgnoreCase("delete")) {
+                        String name = args[base++];
+                        // repeated after a reconnect, a file that is gone was deleted by the lost attempt
+                        boolean success = ftp.deleteFile(name) || attempt > 0 && !exists(ftp, name);
+                        listingCache.invalidate(absolutePath(ftp, name));
 
-                            if (success) {
-                                System.out.println("Successful change of working directory!");
-                            } else {
-                                System.err.println("Unable to change the working directory!");
-                            }
+                        if (success) {
+                            System.out.println("File was successfully removed!");
+                        } else {
+                            System.err.println("File was not removed!");
                         }
-                        // DELETE command
-                        else if (cmd.equalsIgnoreCase("delete")) {
-                            String name = args[base++];
-                            boolean success = ftp.deleteFile(name);
+                    }
+                    // GET - and PUT - from a script: the process's stdin and stdout are not the script client's
+                    else if (scripted && (cmd.equalsIgnoreCase("get") || cmd.equalsIgnoreCase("put"))
+                            && args[base].equals("-")) {
+                        base++;
+                        String remotePath = args[base++];
 
-                            if (success) {
-                                System.out.println("File was successfully removed!");
-                            } else {
-                                System.err.println("File was not removed!");
-                            }
+                        System.err.println("COULD NOT " + cmd + " - " + remotePath
+                                + ": streaming through stdin or stdout only works on the command line");
+                    }
+                    // GET - command: stream a remote file, or a directory as a tar archive, to stdout
+                    else if (cmd.equalsIgnoreCase("get") && args[base].equals("-")) {
+                        base++;
+                        String remotePath = args[base++];
+
+                        streamDownload(ftp, remotePath);
+                    }
+                    // PUT - command: store what is read from stdin as a remote file
+                    else if (cmd.equalsIgnoreCase("put") && args[base].equals("-")) {
+                        base++;
+                        String remotePath = args[base++];
+
+                        boolean success = uploadStdin(ftp, remotePath);
+                        listingCache.invalidate(absolutePath(ftp, remotePath));
+
+                        if (success) {
+                            System.out.println("File was successfully uploaded!");
+                        } else {
+                            System.err.println("File was not uploaded.");
                         }
-                        // GET command: automatically detects if a file or directory is desired
-                        else if (cmd.equalsIgnoreCase("get")) {
-                            String remoteFilePath = args[base++];
-                            Path currentRelativePath = Paths.get("");
-                            String filePath = currentRelativePath.toAbsolutePath().toString();
-
-                            FTPFile files[] = ftp.listFiles(remoteFilePath);
-                            //No files were found under that path
-                            if (files.length == 0) {
-                                System.err.println("Could not locate specified directory or file.");
-                            }
-                            // One file was found under that path, could be that only one directory exists inside that path or simply a single file exists in that path
-                            else if (files.length == 1) {
-                                FTPFile f = files[0];
-                                if (f.isDirectory()) {
-                                    downloadDirectory(ftp, remoteFilePath, "", filePath);
-                                } else if (f.isFile()) {
-                                    filePath += "/" + f.getName();
-                                    boolean success = downloadSingleFile(ftp, remoteFilePath, filePath);
-
-                                    if (success) {
-                                        System.out.println("File has been downloaded successfully.");
-                                    } else {
-                                        System.err.println("File was not downloaded.");
-                                    }
-                                }
-                            }
-                            // Multiple files were found under that path i.e. this is a directory
-                            else {
-                                downloadDirectory(ftp, remoteFilePath, "", filePath);
-                            }
+                    }
+                    // GET command: automatically detects if a file or directory is desired
+                    else if (cmd.equalsIgnoreCase("get")) {
+                        String remoteFilePath = args[base++];
+                        Path currentRelativePath = Paths.get("");
+                        String filePath = currentRelativePath.toAbsolutePath().toString();
+
+                        // A single MLST answers file or directory without listing the directory's contents
+                        FTPFile probe = ftp.hasFeature("MLST") ? ftp.mlistFile(remoteFilePath) : null;
+                        FTPFile files[] = probe != null ? new FTPFile[] { probe } : listFiles(ftp, remoteFilePath);
+                        //No files were found under that path
+                        if (files.length == 0) {
+                            System.err.println("Could not locate specified directory or file.");
                         }
-                        // STORE command: store a file or directory in the FTP server
-                        else if (cmd.equalsIgnoreCase("put")) {
-                            String localPath = args[base++];
-                            Path path = Paths.get(localPath);
-                            // A directory is found at the path
-                            if (Files.isDirectory(path)) {
-                                String remotePath = args[base++];
-                                uploadDirectory(ftp, remotePath, localPath, "");
-                            }
-                            // A single file was found at the given path
-                            else {
-                                String fileName = path.getFileName().toString();
-                                boolean success = uploadSingleFile(ftp, fileName, localPath);
+                        // One file was found under that path, could be that only one directory exists inside that path or simply a single file exists in that path
+                        else if (files.length == 1) {
+                            FTPFile f = files[0];
+                            if (f.isDirectory()) {
+                                downloadDirectory(ftp, pool, remoteFilePath, filePath);
+                            } else if (f.isFile()) {
+                                filePath += "/" + f.getName();
+                                long[] deflated = compression != null ? compression.totals() : null;
+                                boolean success = downloadFile(ftp, pool, remoteFilePath, filePath, f.getSize());
 
                                 if (success) {
-                                    System.out.println("File was successfully uploaded!");
+                                    System.out.println("File has been downloaded successfully.");
                                 } else {
-                                    System.err.println("File was not uploaded.");
+                                    System.err.println("File was not downloaded.");
+                                }
+                                if (deflated != null) {
+                                    compression.printSummary(deflated);
                                 }
                             }
                         }
-                        // MKDIR command: Make a directory at the current working directory on the FTP server
-                        else if (cmd.equalsIgnoreCase("mkdir")) {
+                        // Multiple files were found under that path i.e. this is a directory
+                        else {
+                            downloadDirectory(ftp, pool, remoteFilePath, filePath);
+                        }
+                    }
+                    // STORE command: store a file or directory in the FTP server
+                    else if (cmd.equalsIgnoreCase("put")) {
+                        String localPath = args[base++];
+                        Path path = Paths.get(localPath);
+                        // A directory is found at the path
+                        if (Files.isDirectory(path)) {
                             String remotePath = args[base++];
-
-                            boolean success = ftp.makeDirectory(remotePath);
+                            uploadDirectory(ftp, pool, remotePath, localPath);
+                            listingCache.invalidate(absolutePath(ftp, remotePath));
+                        }
+                        // A single file was found at the given path
+                        else {
+                            String fileName = path.getFileName().toString();
+                            long[] deflated = compression != null ? compression.totals() : null;
+                            boolean success = uploadSingleFile(ftp, fileName, localPath);
+                            listingCache.invalidate(absolutePath(ftp, fileName));
 
                             if (success) {
-                                System.out.println("Directory was successfully created!");
+                                System.out.println("File was successfully uploaded!");
                             } else {
-                                System.err.println("Directory was not created.");
+                                System.err.println("File was not uploaded.");
+                            }
+                            if (deflated != null) {
+                                compression.printSummary(deflated);
                             }
                         }
-                        // RMDIR command: Remove the specified directory and all files and sub-directories found within
-                        else if (cmd.equalsIgnoreCase("rmdir")) {
-                            String remotePath = args[base++];
+                    }
+                    // MKDIR command: Make a directory at the current working directory on the FTP server
+                    else if (cmd.equalsIgnoreCase("mkdir")) {
+                        String remotePath = args[base++];
 
-                            removeDirectory(ftp, remotePath, "");
+                        boolean success = ftp.makeDirectory(remotePath) || attempt > 0 && exists(ftp, remotePath);
+                        listingCache.invalidate(absolutePath(ftp, remotePath));
+
+                        if (success) {
+                            System.out.println("Directory was successfully created!");
+                        } else {
+                            System.err.println("Directory was not created.");
                         }
-                        // They did not supply a valid command, show the list of valid commands
-                        else {
+                    }
+                    // RMDIR command: Remove the specified directory and all files and sub-directories found within
+                    else if (cmd.equalsIgnoreCase("rmdir")) {
+                        String remotePath = args[base++];
+
+                        removeDirectory(ftp, pool, remotePath);
+                        listingCache.invalidate(absolutePath(ftp, remotePath));
+                    }
+                    // SYNC command: transfer only what changed since the target was last brought in step
+                    else if (cmd.equalsIgnoreCase("sync")) {
+                        String direction = args[base++];
+                        if (direction.equalsIgnoreCase("get")) {
+                            String remotePath = args[base++];
+                            String localPath = Paths.get("").toAbsolutePath().toString() + File.separator
+                                    + remotePath;
+                            syncDirectory(ftp, pool, absolutePath(ftp, remotePath), localPath, true);
+                        } else if (direction.equalsIgnoreCase("put")) {
+                            String localPath = args[base++];
+                            String remotePath = args[base++];
+                            syncDirectory(ftp, pool, absolutePath(ftp, remotePath), localPath, false);
+                            listingCache.invalidate(absolutePath(ftp, remotePath));
+                        } else {
                             System.err.println(commands);
                         }
                     }
-                } catch (IndexOutOfBoundsException e) {
-                    System.err.println("Command " + cmd + " needs an additional parameter(s)!");
-                }
+                    // FOLLOW command: fetch what is appended to a growing remote file or directory of files
+                    else if (cmd.equalsIgnoreCase("follow")) {
+                        String remotePath = args[base++];
 
-                ftp.logout();
-            }
-        } catch (FTPConnectionClosedException e) {
-            error = true;
-            System.err.println("Server closed connection.");
-            e.printStackTrace();
-        } catch (IOException e) {
-            error = true;
-            e.printStackTrace();
-        } finally {
-            if (ftp.isConnected()) {
-                try {
-                    ftp.disconnect();
-                } catch (IOException f) {
-                    // No idea how you got here.
+                        follow(ftp, remotePath, Paths.get("").toAbsolutePath().toString());
+                    }
+                    // INDEX and REINDEX commands: crawl a remote tree into the index find and du answer from
+                    else if (cmd.equalsIgnoreCase("index") || cmd.equalsIgnoreCase("reindex")) {
+                        String remotePath = args[base++];
+
+                        crawl(ftp, pool, remotePath, cmd.equalsIgnoreCase("reindex"), true);
+                    }
+                    // FIND command: search the index of a remote tree by name
+                    else if (cmd.equalsIgnoreCase("find")) {
+                        String remotePath = args[base++];
+                        String pattern = args[base++];
+
+                        find(ftp, pool, remotePath, pattern);
+                    }
+                    // DU command: sizes of a remote tree from its index
+                    else if (cmd.equalsIgnoreCase("du")) {
+                        String remotePath = args[base++];
+
+                        diskUsage(ftp, pool, remotePath);
+                    }
+                    // FXP command: copy between the connected server and another one without passing the data through here
+                    else if (cmd.equalsIgnoreCase("fxp")) {
+                        String target = args[base++];
+                        String targetCredentials = args[base++];
+                        String sourcePath = args[base++];
+                        String targetPath = args[base++];
+
+                        copyToServer(ftp, pool, target, targetCredentials, sourcePath, targetPath);
+                    }
+                    // SCRIPT command: run more commands from a file or stdin over the same sessions
+                    else if (cmd.equalsIgnoreCase("script")) {
+                        String scriptPath = args[base++];
+
+                        BufferedReader reader = new BufferedReader(scriptPath.equals("-")
+                                ? new InputStreamReader(System.in) : new FileReader(scriptPath));
+                        try {
+                            runScript(ftp, pool, reader);
+                        } finally {
+                            reader.close();
+                        }
+                    }
+                    // SERVE command: keep the sessions warm and run the commands local clients send
+                    else if (cmd.equalsIgnoreCase("serve")) {
+                        int servePort = Integer.parseInt(args[base++]);
+
+                        serve(ftp, pool, servePort);
+                    }
+                    // SHUTDOWN command: stop serving after the current client
+                    else if (cmd.equalsIgnoreCase("shutdown")) {
+                        serving = false;
+                    }
+                    // SET command: change a transfer setting for the commands that follow
+                    else if (cmd.equalsIgnoreCase("set")) {
+                        String option = args[base++];
+                        String value = args[base++];
+
+                        if (applySetting(option, value)) {
+                            configure(ftp, pool);
+                            System.out.println("Set " + option + " to " + value);
+                        } else {
+                            System.err.println("Unknown setting or invalid value: " + option + " " + value);
+                        }
+                    }
+                    // They did not supply a valid command, show the list of valid commands
+                    else {
+                        System.err.println(commands);
+                    }
+                    attempt = 0;
+                } catch (IOException e) {
+                    // a dropped connection costs the command, not the run: the main session is connected again and
+                    // the command repeated, unless it consumed or produced a stream that cannot be replayed
+                    if (!SessionPool.isTransient(e) || attempt >= retries) {
+                        throw e;
+                    }
+                    attempt++;
+                    metrics.reconnected();
+                    System.err.println("Connection lost during " + cmd + " (" + e.getMessage() + "), reconnecting.");
+                    reconnect(ftp, pool);
+                    if (repeatable(args, start)) {
+                        base = start;
+                    } else {
+                        attempt = 0;
+                        System.err.println("NOT repeating " + cmd + ", it cannot be redone safely.");
+                    }
                 }
             }
+        } catch (IndexOutOfBoundsException e) {
+            System.err.println("Command " + cmd + " needs an additional parameter(s)!");
         }
-        System.exit(error ? 1 : 0);
     }
 
     /**
-     * Change the working directory of the FTP server.
+     * Tells whether a command whose connection dropped can simply be run again. Transfers to and from files are
+     * repeated, as are listings and changes that are checked on the second run, but not a script or server, nor a
+     * transfer from stdin or to stdout, which cannot be replayed.
      * 
-     * @param ftpClient
-     *          An instance of org.apache.commons.net.ftp.FTPClient class.
-     * @param remoteDirPath
-     *          Path of the directory on the remote server.
-     * @return  true if the working directory was successsfully changed, false if not
-     * @throws IOException
-     *          if any network or IO error occurred.
-     * @author Luis Guillermo Pedroza-Soto
+     * @param args
+     *          The commands and their parameters.
+     * @param start
+     *          Index of the command.
+     * @return  true if running the command again is safe
      */
-    private static boolean changeWorkingDirectory(FTPClient ftpClient, String remoteDirPath) throws IOException {
-        boolean success;
-
-        //Parent directory is desired
-        if (remoteDirPath.equals("..")) {
-            success = ftpClient.changeToParentDirectory();
-        } else {
-            success = ftpClient.changeWorkingDirectory(remoteDirPath);
+    private static boolean repeatable(String[] args, int start) {
+        String cmd = args[start];
+        if (cmd.equalsIgnoreCase("script") || cmd.equalsIgnoreCase("serve")) {
+            return false;
         }
-
-        return success;
+        boolean stream = start + 1 < args.length && args[start + 1].equals("-");
+        return !(stream && (cmd.equalsIgnoreCase("get") || cmd.equalsIgnoreCase("put")));
     }
 
     /**
-     * Tracks the progress of a download from the FTP server.
+     * Connects the main session again after its connection dropped, retrying with backoff, and takes it back to the
+     * directory it was in.
      * 
-     * @return  An instance of org.apache.commons.net.io.CopyStreamListener class.
-     * @author  commons.apache.org
+     * @param ftp
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool whose settings the session is logged in with.
+     * @throws IOException
+     *          if the server could not be reached again.
      */
-    private static CopyStreamListener createListener() {
-        return new CopyStreamListener() {
-            private long megsTotal = 0;
-
-            @Override
-            public void bytesTransferred(CopyStreamEvent event) {
-                bytesTransferred(event.getTotalBytesTransferred(), event.getBytesTransferred(), event.getStreamSize());
-            }
-
-            @Override
-            public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
-                long megs = totalBytesTransferred / 1000000;
-                for (long l = megsTotal; l < megs; l++) {
-                    System.err.print("#");
-                }
-                megsTotal = megs;
+    private static void reconnect(FTPClient ftp, SessionPool pool) throws IOException {
+        if (verifier != null) {
+            // the server forgot the OPTS HASH of the dropped connection
+            verifier.reset(ftp);
+        }
+        pool.reconnect(ftp);
+        for (String dir : directoryTrail) {
+            if (!changeWorkingDirectory(ftp, dir)) {
+                System.err.println("Reconnected, but could not return to the remote directory " + dir);
+                directoryTrail.clear();
+                workingDir = null;
+                return;
             }
-        };
+        }
+        System.out.println("Reconnected to the server.");
     }
 
     /**
-     * Retrieves the contents of a directory including any sub directories recursively.
+     * Runs one step of a job on the main session, such as a listing or a file of a recursive transfer. If the
+     * connection drops, the session is connected again, taken back to its directory and the step repeated, so a long
+     * job on one session survives a server reset without starting over. A step that still fails is reported as a
+     * plain IOException, so neither the steps around it nor the command repeat it again.
      * 
-     * @param ftpClient
-     *          An instance of org.apache.commons.net.ftp.FTPClient class.
-     * @param remoteDirPath
-     *          Path of the destination directory on the server.
-     * @param localParentDir
-     *          Path of the local directory being uploaded.
-     * @param remoteParentDir
-     *          Path of the parent directory of the current directory on the
-     *          server (used by recursive calls).
+     * @param ftp
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool whose settings the session is reconnected with.
+     * @param operation
+     *          The step. It must be safe to repeat after a partial run.
+     * @return  What the step returned
      * @throws IOException
-     *          if any network or IO error occurred.
-     * @author www.codejava.net
+     *          if the step failed for good.
      */
-    private static void downloadDirectory(FTPClient ftpClient, String parentDir, String currentDir, String saveDir)
+    private static <T> T onMain(FTPClient ftp, SessionPool pool, SessionPool.Operation<T> operation)
             throws IOException {
-        String dirToList = parentDir;
-        if (!currentDir.equals("")) {
-            dirToList += "/" + currentDir;
-        }
-
-        FTPFile[] subFiles = ftpClient.listFiles(dirToList);
-
-        if (subFiles != null && subFiles.length > 0) {
-            for (FTPFile aFile : subFiles) {
-                String currentFileName = aFile.getName();
-                if (currentFileName.equals(".") || currentFileName.equals("..")) {
-                    // skip parent directory and the directory itself
-                    continue;
+        for (int attempt = 0;; attempt++) {
+            try {
+                return operation.run(ftp, attempt);
+            } catch (IOException e) {
+                if (!SessionPool.isTransient(e)) {
+                    throw e;
                 }
-                String filePath = parentDir + "/" + currentDir + "/" + currentFileName;
-                if (currentDir.equals("")) {
-                    filePath = parentDir + "/" + currentFileName;
+                if (attempt >= retries) {
+                    throw new IOException("Gave up after " + attempt + " reconnect(s): " + e.getMessage(), e);
                 }
+                metrics.reconnected();
+                System.err.println("Connection lost (" + e.getMessage() + "), reconnecting.");
+                reconnect(ftp, pool);
+            }
+        }
+    }
 
-                String newDirPath = saveDir + File.separator + parentDir + File.separator + currentDir + File.separator
-                        + currentFileName;
-                if (currentDir.equals("")) {
-                    newDirPath = saveDir + File.separator + parentDir + File.separator + currentFileName;
+    /**
+     * Runs the commands read from a script, one command with its parameters per line, over the sessions that are
+     * already logged in. Blank lines and lines starting with '#' are skipped. While the script waits for its next
+     * line, for instance on a quiet stdin, the sessions are kept open with NOOP. get - and put - are refused, as the
+     * process's stdin and stdout do not belong to the script.
+     * 
+     * @param ftp
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions.
+     * @param reader
+     *          Source of the script.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static void runScript(FTPClient ftp, SessionPool pool, BufferedReader reader) throws IOException {
+        ScheduledExecutorService keepAlive = startKeepAlive(ftp, pool);
+        boolean outer = scripted;
+        scripted = true;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = tokenize(line);
+                if (tokens.length == 0 || tokens[0].startsWith("#")) {
+                    continue;
+                }
+                synchronized (ftp) {
+                    runCommands(ftp, pool, tokens, 0);
+                }
+            }
+        } finally {
+            scripted = outer;
+            keepAlive.shutdownNow();
+        }
+    }
+
+    /**
+     * Listens on a local port and runs the script each client sends, so repeated jobs reuse this process and its
+     * logged-in sessions instead of paying for JVM startup, connect and login every time. Clients are served one at
+     * a time and the output of their commands is sent back to them, so a job can be as short as
+     * {@code echo "get notes.txt" | nc localhost 9123}. Only connections from this machine are accepted.
+     * 
+     * @param ftp
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions.
+     * @param port
+     *          Local port to listen on.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static void serve(FTPClient ftp, SessionPool pool, int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        ScheduledExecutorService keepAlive = startKeepAlive(ftp, pool);
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        System.out.println("Serving commands on " + serverSocket.getLocalSocketAddress());
+        serving = true;
+        try {
+            while (serving) {
+                Socket client = serverSocket.accept();
+                try {
+                    PrintStream clientOut = new PrintStream(client.getOutputStream(), true);
+                    System.setOut(clientOut);
+                    System.setErr(clientOut);
+                    runScript(ftp, pool, new BufferedReader(new InputStreamReader(client.getInputStream())));
+                } catch (IOException e) {
+                    if (!ftp.isConnected()) {
+                        throw e;
+                    }
+                    err.println("Client failed: " + e.getMessage());
+                } finally {
+                    System.setOut(out);
+                    System.setErr(err);
+                    client.close();
+                }
+            }
+        } finally {
+            keepAlive.shutdownNow();
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Starts sending NOOP on the main session, and on the idle pooled sessions, every keepalive interval. Commands
+     * run while holding the main session's lock, so a NOOP never interleaves with one.
+     * 
+     * @param ftp
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions.
+     * @return  The scheduler, to be shut down once the caller stops waiting for commands
+     */
+    private static ScheduledExecutorService startKeepAlive(final FTPClient ftp, final SessionPool pool) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "keepalive");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            synchronized (ftp) {
+                try {
+                    ftp.sendNoOp();
+                } catch (IOException e) {
+                    System.err.println("Keepalive failed: " + e.getMessage());
+                }
+            }
+            pool.keepAlive();
+        }, keepAliveSeconds, keepAliveSeconds, TimeUnit.SECONDS);
+        return scheduler;
+    }
+
+    /**
+     * Splits a script line into a command and its parameters. Parameters containing spaces can be wrapped in single
+     * or double quotes.
+     * 
+     * @param line
+     *          One line of a script.
+     * @return  The command followed by its parameters
+     */
+    private static String[] tokenize(String line) {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder token = new StringBuilder();
+        char quote = 0;
+        boolean inToken = false;
+        for (char c : line.toCharArray()) {
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    token.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inToken = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inToken) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                token.append(c);
+                inToken = true;
+            }
+        }
+        if (inToken) {
+            tokens.add(token.toString());
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Looks up the virtual thread builder reflectively, so the client still compiles and runs on Java versions that
+     * predate it.
+     * 
+     * @return  A factory of virtual threads, or null if this Java version has none
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "transfer-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param size
+     *          Number of bytes a queued transfer moves, or -1 if unknown.
+     * @return  The size to queue the transfer with, -1 to keep it in the order it was found
+     */
+    private static long scheduledSize(long size) {
+        return scheduleBySize ? size : -1;
+    }
+
+    /**
+     * Writes the metrics of the run as JSON to the file chosen with "set metrics", if any.
+     */
+    private static void writeMetrics() {
+        if (metricsPath == null) {
+            return;
+        }
+        if (metricsPath.equals("-")) {
+            System.out.println(metrics.getJson());
+            return;
+        }
+        try {
+            Files.write(Paths.get(metricsPath), metrics.getJson().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println("Could not write the metrics to " + metricsPath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Change one of the transfer settings used by the commands that follow it.
+     * 
+     * @param option
+     *          Name of the setting.
+     * @param value
+     *          New value of the setting.
+     * @return  true if the setting was recognised and the value is valid, false if not
+     */
+    static boolean applySetting(String option, String value) {
+        try {
+            switch (option.toLowerCase(Locale.ROOT)) {
+            case "sessions":
+                int count = Integer.parseInt(value);
+                if (count < 1) {
+                    return false;
+                }
+                sessions = count;
+                buffers.setLimit(count);
+                return true;
+            case "segments":
+                int segmentCount = Integer.parseInt(value);
+                if (segmentCount < 1) {
+                    return false;
+                }
+                segments = segmentCount;
+                return true;
+            case "segmentsize":
+                long bytes = parseSize(value);
+                if (bytes < 1) {
+                    return false;
+                }
+                segmentSize = bytes;
+                return true;
+            case "resume":
+                if (!value.equalsIgnoreCase("on") && !value.equalsIgnoreCase("off")) {
+                    return false;
+                }
+                resume = value.equalsIgnoreCase("on");
+                return true;
+            case "syncdelete":
+                if (!value.equalsIgnoreCase("on") && !value.equalsIgnoreCase("off")) {
+                    return false;
+                }
+                syncDelete = value.equalsIgnoreCase("on");
+                return true;
+            case "cachettl":
+                long seconds = Long.parseLong(value);
+                if (seconds < 0) {
+                    return false;
+                }
+                listingCache.setTtlMillis(seconds * 1000);
+                return true;
+            case "cachesize":
+                int entries = Integer.parseInt(value);
+                if (entries < 1) {
+                    return false;
+                }
+                listingCache.setMaxEntries(entries);
+                return true;
+            case "nio":
+                if (!value.equalsIgnoreCase("on") && !value.equalsIgnoreCase("off")) {
+                    return false;
+                }
+                nio = value.equalsIgnoreCase("on");
+                return true;
+            case "buffer":
+                long size = parseSize(value);
+                if (size < 1024 || size > Integer.MAX_VALUE) {
+                    return false;
+                }
+                bufferSize = (int) size;
+                return true;
+            case "schedule":
+                if (!value.equalsIgnoreCase("size") && !value.equalsIgnoreCase("fifo")) {
+                    return false;
+                }
+                scheduleBySize = value.equalsIgnoreCase("size");
+                return true;
+            case "threads":
+                if (value.equalsIgnoreCase("platform")) {
+                    transferThreads = null;
+                    return true;
+                }
+                if (!value.equalsIgnoreCase("virtual")) {
+                    return false;
+                }
+                ThreadFactory factory = virtualThreadFactory();
+                if (factory == null) {
+                    System.err.println("Virtual threads need Java 21 or later, staying on platform threads.");
+                    return false;
+                }
+                transferThreads = factory;
+                return true;
+            case "verify":
+                if (value.equalsIgnoreCase("off")) {
+                    verifier = null;
+                    return true;
+                }
+                try {
+                    verifier = new ChecksumVerifier(value.toLowerCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+                return true;
+            case "compress":
+                if (value.equalsIgnoreCase("off")) {
+                    compression = null;
+                    return true;
+                }
+                try {
+                    compression = new TransferCompression(value.equalsIgnoreCase("on") ? 6 : Integer.parseInt(value));
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+                return true;
+            case "metrics":
+                metricsPath = value.equalsIgnoreCase("off") ? null : value;
+                return true;
+            case "keepalive":
+                long keepAlive = Long.parseLong(value);
+                if (keepAlive < 1) {
+                    return false;
+                }
+                keepAliveSeconds = keepAlive;
+                return true;
+            case "followinterval":
+                long interval = Long.parseLong(value);
+                if (interval < 1) {
+                    return false;
+                }
+                followSeconds = interval;
+                return true;
+            case "followpolls":
+                long polls = Long.parseLong(value);
+                if (polls < 0) {
+                    return false;
+                }
+                followPolls = polls;
+                return true;
+            case "retries":
+                int attempts = Integer.parseInt(value);
+                if (attempts < 0) {
+                    return false;
+                }
+                retries = attempts;
+                return true;
+            case "healthcheck":
+                long idleSeconds = Long.parseLong(value);
+                if (idleSeconds < 0) {
+                    return false;
+                }
+                healthCheckSeconds = idleSeconds;
+                return true;
+            case "tlsreuse":
+                if (!value.equalsIgnoreCase("on") && !value.equalsIgnoreCase("off")) {
+                    return false;
+                }
+                tlsReuse = value.equalsIgnoreCase("on");
+                return true;
+            case "indexrefresh":
+                if (!value.equalsIgnoreCase("on") && !value.equalsIgnoreCase("off")) {
+                    return false;
+                }
+                indexRefresh = value.equalsIgnoreCase("on");
+                return true;
+            default:
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Applies the session settings to the main session and the pool, whose idle sessions pick them up when they are
+     * borrowed next.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions.
+     */
+    private static void configure(FTPClient ftpClient, SessionPool pool) {
+        pool.setRetries(retries);
+        pool.setHealthCheckMillis(healthCheckSeconds * 1000);
+        pool.setSessionReuse(tlsReuse);
+        if (ftpClient instanceof SecureFTPClient) {
+            ((SecureFTPClient) ftpClient).setSessionReuse(tlsReuse);
+        }
+    }
+
+    /**
+     * Parses a byte count with an optional k, m or g suffix (powers of 1024).
+     * 
+     * @param value
+     *          The byte count, e.g. "1048576" or "1m".
+     * @return  The number of bytes
+     * @throws NumberFormatException
+     *          if the value is not a number.
+     */
+    private static long parseSize(String value) {
+        String number = value.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (number.endsWith("k")) {
+            unit = 1024L;
+        } else if (number.endsWith("m")) {
+            unit = 1024L * 1024;
+        } else if (number.endsWith("g")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        if (unit > 1) {
+            number = number.substring(0, number.length() - 1);
+        }
+        return Long.parseLong(number) * unit;
+    }
+
+    /**
+     * Tells whether a remote file or directory exists, e.g. to find out whether a DELE, RMD or MKD that was cut off
+     * by a dropped connection took effect.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remotePath
+     *          Path of the file or directory on the server.
+     * @return  true if the server lists something at the path
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static boolean exists(FTPClient ftpClient, String remotePath) throws IOException {
+        if (ftpClient.hasFeature("MLST")) {
+            return ftpClient.mlistFile(remotePath) != null;
+        }
+        // NLST answers a missing path with an error, and an empty directory with an empty list
+        return ftpClient.listNames(remotePath) != null;
+    }
+
+    /**
+     * Asks the server for the size of a remote file with the SIZE command.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remoteFilePath
+     *          Path of the file on the server.
+     * @return  The size in bytes, or -1 if the file does not exist or the server does not support SIZE
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static long remoteSize(FTPClient ftpClient, String remoteFilePath) throws IOException {
+        if (ftpClient.sendCommand("SIZE", remoteFilePath) != FTPReply.FILE_STATUS) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(ftpClient.getReplyString().substring(4).trim());
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param ftpClient
+     *          an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remoteFilePath
+     *          Path of the file on the server.
+     * @param time
+     *          A time in milliseconds since the epoch.
+     * @return  true if the server reports the file as modified after the time, false if not or if it cannot tell
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static boolean modifiedSince(FTPClient ftpClient, String remoteFilePath, long time) throws IOException {
+        // MDTM has whole seconds
+        return remoteTime(ftpClient, remoteFilePath) / 1000 > time / 1000;
+    }
+
+    /**
+     * Asks the server for the modification time of a remote file with the MDTM command.
+     * 
+     * @param ftpClient
+     *          an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remoteFilePath
+     *          Path of the file on the server.
+     * @return  The time in milliseconds since the epoch, or -1 if the file does not exist or the server does not
+     *          support MDTM
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static long remoteTime(FTPClient ftpClient, String remoteFilePath) throws IOException {
+        if (!ftpClient.hasFeature("MDTM")) {
+            return -1;
+        }
+        FTPFile times = ftpClient.mdtmFile(remoteFilePath);
+        return times != null && times.getTimestamp() != null ? times.getTimestamp().getTimeInMillis() : -1;
+    }
+
+    /**
+     * Checks the journal of the recursive transfer in progress for a file a previous run already completed.
+     * 
+     * @param localPath
+     *          Local path of the file.
+     * @param size
+     *          Size of the file being copied, the remote one for a download and the local one for an upload.
+     * @param time
+     *          Modification time of the file being copied, -1 if not known.
+     * @return  true if the file should be skipped
+     */
+    private static boolean alreadyTransferred(String localPath, long size, long time) {
+        if (journal != null && journal.isDone(localPath, size, time)) {
+            System.out.println("SKIPPED the file, already done: " + localPath);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records the outcome of one file of the recursive transfer in progress in its journal, if there is one.
+     * 
+     * @param localPath
+     *          Local path of the file.
+     * @param success
+     *          Whether the file was transferred.
+     * @param size
+     *          Size the file being copied had before the transfer.
+     * @param time
+     *          Modification time the file being copied had before the transfer, -1 if not known.
+     */
+    private static void recordTransfer(String localPath, boolean success, long size, long time) {
+        if (journal == null) {
+            return;
+        }
+        if (success) {
+            journal.markDone(localPath, size, time);
+        } else {
+            journal.markFailed();
+        }
+    }
+
+    /**
+     * Closes the journal of the recursive transfer that just ended, if there is one.
+     * 
+     * @param finished
+     *          false if the transfer was cut short by an error, which keeps the journal for the next run.
+     */
+    private static void closeJournal(boolean finished) {
+        if (journal == null) {
+            return;
+        }
+        if (!finished) {
+            journal.markFailed();
+        }
+        journal.close();
+        journal = null;
+    }
+
+    /**
+     * Resolves a remote path against the working directory of the main session, so that other sessions (which
+     * start in the login directory) refer to the same file. The working directory is only asked for once per cd.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remotePath
+     *          Path on the server, absolute or relative to the working directory.
+     * @return  The absolute path on the server
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static String absolutePath(FTPClient ftpClient, String remotePath) throws IOException {
+        if (remotePath.startsWith("/")) {
+            return remotePath;
+        }
+        if (workingDir == null) {
+            workingDir = ftpClient.printWorkingDirectory();
+            if (workingDir == null) {
+                throw new IOException("Could not determine the remote working directory.");
+            }
+            directoryTrail.clear();
+            directoryTrail.add(workingDir);
+        }
+        return workingDir.endsWith("/") ? workingDir + remotePath : workingDir + "/" + remotePath;
+    }
+
+    /**
+     * Lists a remote path, answering from the listing cache when the same path was listed recently. Relative paths
+     * are taken from the working directory of the main session, the only session that ever changes directory.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remotePath
+     *          Path of the directory or file on the server, "" for the working directory.
+     * @return  The entries of the directory, or the file itself
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static FTPFile[] listFiles(FTPClient ftpClient, String remotePath) throws IOException {
+        String key = remotePath.startsWith("/") ? remotePath : absolutePath(ftpClient, remotePath);
+        FTPFile[] files = listingCache.get(key);
+        if (files == null) {
+            files = remotePath.isEmpty() ? ftpClient.listFiles() : ftpClient.listFiles(remotePath);
+            listingCache.put(key, files);
+        }
+        return files;
+    }
+
+    /**
+     * Hands every entry of a remote directory to the handler as soon as it is parsed off the data connection, so
+     * huge directories are never held in memory and work on the first entries can start while the rest are still
+     * arriving. MLSD is used when the server supports it. The handler runs while the listing is still in progress,
+     * so it must not use the same session.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remotePath
+     *          Path of the directory on the server, "" for the working directory.
+     * @param handler
+     *          What to do with each entry.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static void streamListing(FTPClient ftpClient, String remotePath, RemoteFileHandler handler)
+            throws IOException {
+        String key = remotePath.startsWith("/") ? remotePath : absolutePath(ftpClient, remotePath);
+        FTPFile[] cached = listingCache.get(key);
+        if (cached != null || !(ftpClient instanceof StreamingFTPClient)) {
+            for (FTPFile aFile : cached != null ? cached : listFiles(ftpClient, remotePath)) {
+                handler.handle(aFile);
+            }
+            return;
+        }
+
+        boolean machineListing = ftpClient.hasFeature("MLST");
+        FTPFileEntryParser parser = machineListing ? MLSxEntryParser.getInstance()
+                : new DefaultFTPFileEntryParserFactory().createFileEntryParser(ftpClient.getSystemType());
+        Socket socket = ((StreamingFTPClient) ftpClient).openDataConnection(machineListing ? "MLSD" : "LIST",
+                remotePath.isEmpty() ? null : remotePath);
+        if (socket == null) {
+            throw new IOException("Could not list " + remotePath + ": " + ftpClient.getReplyString().trim());
+        }
+
+        // Small listings are still kept for the cache, big ones are let go of entry by entry
+        List<FTPFile> kept = new ArrayList<FTPFile>();
+        boolean received = false;
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), ftpClient.getControlEncoding()));
+            String entry;
+            while ((entry = parser.readNextEntry(reader)) != null) {
+                FTPFile aFile = parser.parseFTPEntry(entry);
+                if (aFile == null) {
+                    continue;
+                }
+                if (kept != null) {
+                    kept.add(aFile);
+                    if (kept.size() > CACHEABLE_ENTRIES) {
+                        kept = null;
+                    }
+                }
+                handler.handle(aFile);
+            }
+            received = true;
+        } finally {
+            socket.close();
+            if (!received) {
+                // the server still answers the cut-off listing, and that reply must not be taken for the next one's
+                try {
+                    ftpClient.completePendingCommand();
+                } catch (IOException e) {
+                    // the error that cut the listing off is the one reported
+                }
+            }
+        }
+        if (ftpClient.completePendingCommand() && kept != null) {
+            listingCache.put(key, kept.toArray(new FTPFile[kept.size()]));
+        }
+    }
+
+    /**
+     * Hands every entry of a remote directory to the handler once the whole listing has been received, so unlike
+     * {@link #streamListing} the handler may use the same session. The listing is read off the data connection an
+     * entry at a time, MLSD being used when the server supports it; a listing small enough to be cached is kept in
+     * memory, a bigger one is spooled to a temporary file and parsed back from it entry by entry, so the heap stays
+     * flat however big the directory is. Sessions that cannot open a data connection themselves, such as FTPS ones,
+     * fall back on commons-net's list parsing, which holds the raw listing in memory and parses it a page at a time.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remotePath
+     *          Path of the directory on the server.
+     * @param handler
+     *          What to do with each entry.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static void pagedListing(FTPClient ftpClient, String remotePath, RemoteFileHandler handler)
+            throws IOException {
+        String key = remotePath.startsWith("/") ? remotePath : absolutePath(ftpClient, remotePath);
+        FTPFile[] cached = listingCache.get(key);
+        if (cached != null) {
+            for (FTPFile aFile : cached) {
+                handler.handle(aFile);
+            }
+            return;
+        }
+
+        if (!(ftpClient instanceof StreamingFTPClient)) {
+            FTPListParseEngine engine = ftpClient.initiateListParsing(remotePath);
+            List<FTPFile> kept = new ArrayList<FTPFile>();
+            while (engine.hasNext()) {
+                FTPFile[] page = engine.getNext(LISTING_PAGE);
+                for (FTPFile aFile : page) {
+                    if (aFile == null) {
+                        continue;
+                    }
+                    if (kept != null) {
+                        kept.add(aFile);
+                        if (kept.size() > CACHEABLE_ENTRIES) {
+                            kept = null;
+                        }
+                    }
+                    handler.handle(aFile);
+                }
+            }
+            if (kept != null) {
+                listingCache.put(key, kept.toArray(new FTPFile[kept.size()]));
+            }
+            return;
+        }
+
+        boolean machineListing = ftpClient.hasFeature("MLST");
+        FTPFileEntryParser parser = machineListing ? MLSxEntryParser.getInstance()
+                : new DefaultFTPFileEntryParserFactory().createFileEntryParser(ftpClient.getSystemType());
+        Socket socket = ((StreamingFTPClient) ftpClient).openDataConnection(machineListing ? "MLSD" : "LIST",
+                remotePath.isEmpty() ? null : remotePath);
+        if (socket == null) {
+            throw new IOException("Could not list " + remotePath + ": " + ftpClient.getReplyString().trim());
+        }
+
+        List<String> entries = new ArrayList<String>();
+        File spool = null;
+        try {
+            PrintWriter spooled = null;
+            boolean received = false;
+            try {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), ftpClient.getControlEncoding()));
+                String entry;
+                while ((entry = parser.readNextEntry(reader)) != null) {
+                    if (spooled != null) {
+                        spooled.println(entry);
+                        continue;
+                    }
+                    entries.add(entry);
+                    if (entries.size() > CACHEABLE_ENTRIES) {
+                        // too big to cache, so the entries wait on disk instead of on the heap
+                        spool = File.createTempFile("ftp-listing", null);
+                        spooled = new PrintWriter(spool, StandardCharsets.UTF_8.name());
+                        for (String kept : entries) {
+                            spooled.println(kept);
+                        }
+                        entries = null;
+                    }
+                }
+                received = true;
+            } finally {
+                socket.close();
+                if (spooled != null) {
+                    spooled.close();
+                }
+                if (!received) {
+                    // the server still answers the cut-off listing, and that reply must not be taken for the next one's
+                    try {
+                        ftpClient.completePendingCommand();
+                    } catch (IOException e) {
+                        // the error that cut the listing off is the one reported
+                    }
+                }
+            }
+            boolean complete = ftpClient.completePendingCommand();
+
+            if (spool == null) {
+                List<FTPFile> files = new ArrayList<FTPFile>();
+                for (String entry : entries) {
+                    FTPFile aFile = parser.parseFTPEntry(entry);
+                    if (aFile != null) {
+                        files.add(aFile);
+                    }
+                }
+                entries = null;
+                if (complete) {
+                    listingCache.put(key, files.toArray(new FTPFile[files.size()]));
+                }
+                for (FTPFile aFile : files) {
+                    handler.handle(aFile);
+                }
+            } else {
+                BufferedReader reader = Files.newBufferedReader(spool.toPath(), StandardCharsets.UTF_8);
+                try {
+                    String entry;
+                    while ((entry = reader.readLine()) != null) {
+                        FTPFile aFile = parser.parseFTPEntry(entry);
+                        if (aFile != null) {
+                            handler.handle(aFile);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        } finally {
+            if (spool != null) {
+                spool.delete();
+            }
+        }
+    }
+
+    /**
+     * Change the working directory of the FTP server.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remoteDirPath
+     *          Path of the directory on the remote server.
+     * @return  true if the working directory was successsfully changed, false if not
+     * @throws IOException
+     *          if any network or IO error occurred.
+     * @author Luis Guillermo Pedroza-Soto
+     */
+    private static boolean changeWorkingDirectory(FTPClient ftpClient, String remoteDirPath) throws IOException {
+        boolean success;
+
+        //Parent directory is desired
+        if (remoteDirPath.equals("..")) {
+            success = ftpClient.changeToParentDirectory();
+        } else {
+            success = ftpClient.changeWorkingDirectory(remoteDirPath);
+        }
+
+        return success;
+    }
+
+    /**
+     * Retrieves the contents of a directory including any sub directories recursively.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool whose settings the main session is reconnected with if its connection drops.
+     * @param remoteDirPath
+     *          Path of the destination directory on the server.
+     * @param localParentDir
+     *          Path of the local directory being uploaded.
+     * @param remoteParentDir
+     *          Path of the parent directory of the current directory on the
+     *          server (used by recursive calls).
+     * @throws IOException
+     *          if any network or IO error occurred.
+     * @author www.codejava.net
+     */
+    private static void downloadDirectory(FTPClient ftpClient, SessionPool pool, String parentDir, String currentDir,
+            String saveDir) throws IOException {
+        final String dirToList = currentDir.equals("") ? parentDir : parentDir + "/" + currentDir;
+
+        RemoteFileHandler handler = aFile -> {
+            String currentFileName = aFile.getName();
+            if (currentFileName.equals(".") || currentFileName.equals("..")) {
+                // skip parent directory and the directory itself
+                return;
+            }
+            String filePath = currentDir.equals("") ? parentDir + "/" + currentFileName
+                    : parentDir + "/" + currentDir + "/" + currentFileName;
+
+            String newDirPath = currentDir.equals("")
+                    ? saveDir + File.separator + parentDir + File.separator + currentFileName
+                    : saveDir + File.separator + parentDir + File.separator + currentDir + File.separator
+                            + currentFileName;
+
+            if (aFile.isDirectory()) {
+                // create the directory in saveDir
+                File newDir = new File(newDirPath);
+                boolean created = newDir.mkdirs();
+                if (created) {
+                    System.out.println("CREATED the directory: " + newDirPath);
+                } else {
+                    System.err.println("COULD NOT create the directory: " + newDirPath);
+                }
+
+                // download the sub directory
+                downloadDirectory(ftpClient, pool, dirToList, currentFileName, saveDir);
+            } else if (!alreadyTransferred(newDirPath, aFile.getSize(), timeOf(aFile))) {
+                // download the file
+                boolean success = onMain(ftpClient, pool, (session, attempt) -> downloadSingleFile(session, filePath,
+                        newDirPath));
+                recordTransfer(newDirPath, success, aFile.getSize(), timeOf(aFile));
+                if (success) {
+                    System.out.println("DOWNLOADED the file: " + filePath);
+                } else {
+                    System.err.println("COULD NOT download the file: " + filePath);
+                }
+            }
+        };
+        // a listing is read completely before its entries are handled, so repeating it never handles one twice
+        onMain(ftpClient, pool, (session, attempt) -> {
+            pagedListing(session, dirToList, handler);
+            return null;
+        });
+    }
+
+    /**
+     * Retrieves a remote directory recursively, on the main session or, when more than one session is configured,
+     * spread over the sessions of the pool.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions.
+     * @param remoteDirPath
+     *          Path of the directory on the server.
+     * @param saveDir
+     *          Local directory the remote directory is recreated in.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    static void downloadDirectory(FTPClient ftpClient, SessionPool pool, String remoteDirPath, String saveDir)
+            throws IOException {
+        if (resume) {
+            journal = new TransferJournal(pool.getIdentity() + " get " + absolutePath(ftpClient, remoteDirPath) + " "
+                    + saveDir);
+        }
+        boolean finished = false;
+        try {
+            long[] checked = verifier != null ? verifier.totals() : null;
+            long[] deflated = compression != null ? compression.totals() : null;
+            if (sessions <= 1) {
+                downloadDirectory(ftpClient, pool, remoteDirPath, "", saveDir);
+            } else {
+                String localDir = saveDir + File.separator + remoteDirPath;
+                new File(localDir).mkdirs();
+
+                WorkQueue queue = new WorkQueue(sessions, transferThreads);
+                TransferSummary summary = new TransferSummary("Downloaded");
+                submitDirectoryDownload(pool, queue, summary, absolutePath(ftpClient, remoteDirPath), localDir);
+                queue.await();
+                summary.print();
+            }
+            if (checked != null) {
+                verifier.printSummary(checked);
+            }
+            if (deflated != null) {
+                compression.printSummary(deflated);
+            }
+            finished = true;
+        } finally {
+            closeJournal(finished);
+        }
+    }
+
+    /**
+     * Queues the listing of one remote directory. Once listed, every sub directory is created locally and queued in
+     * turn, and every file is queued as a separate download, so listing and retrieval overlap across the sessions.
+     * 
+     * @param pool
+     *          Pool providing the sessions.
+     * @param queue
+     *          Queue the listing and the downloads it discovers are run on.
+     * @param summary
+     *          Totals the downloads are counted in.
+     * @param remoteDir
+     *          Absolute path of the directory on the server.
+     * @param localDir
+     *          Path of the local directory its contents are saved to.
+     */
+    private static void submitDirectoryDownload(final SessionPool pool, final WorkQueue queue,
+            final TransferSummary summary, final String remoteDir, final String localDir) {
+        queue.submit(() -> {
+            // a listing repeated after a dropped connection only queues the entries the lost one had not reached
+            final Set<String> queued = ConcurrentHashMap.newKeySet();
+            try {
+                // entries are queued as they are parsed, so other sessions start on them while this one still lists
+                pool.execute((ftpClient, attempt) -> {
+                    streamListing(ftpClient, remoteDir, aFile -> {
+                        String currentFileName = aFile.getName();
+                        if (currentFileName.equals(".") || currentFileName.equals("..")
+                                || !queued.add(currentFileName)) {
+                            // skip parent directory, the directory itself and what a lost attempt already queued
+                            return;
+                        }
+                        String filePath = remoteDir + "/" + currentFileName;
+                        String newDirPath = localDir + File.separator + currentFileName;
+
+                        if (aFile.isDirectory()) {
+                            // create the directory in saveDir
+                            File newDir = new File(newDirPath);
+                            boolean created = newDir.mkdirs();
+                            if (created) {
+                                System.out.println("CREATED the directory: " + newDirPath);
+                            } else {
+                                System.err.println("COULD NOT create the directory: " + newDirPath);
+                            }
+
+                            // download the sub directory
+                            submitDirectoryDownload(pool, queue, summary, filePath, newDirPath);
+                        } else if (!alreadyTransferred(newDirPath, aFile.getSize(), timeOf(aFile))) {
+                            submitFileDownload(pool, queue, summary, filePath, newDirPath, aFile.getSize(),
+                                    timeOf(aFile));
+                        }
+                    });
+                    return null;
+                });
+            } catch (IOException e) {
+                System.err.println("COULD NOT list the directory: " + remoteDir + " (" + e.getMessage() + ")");
+            }
+        });
+    }
+
+    /**
+     * Queues the download of a single file on whichever session of the pool is free.
+     * 
+     * @param pool
+     *          Pool providing the sessions.
+     * @param queue
+     *          Queue the download is run on.
+     * @param summary
+     *          Totals the download is counted in.
+     * @param remoteFilePath
+     *          Absolute path of the file on the server.
+     * @param savePath
+     *          Path the file is stored at locally.
+     * @param size
+     *          Size of the remote file as listed by the server, used to schedule the download.
+     * @param time
+     *          Modification time of the remote file as listed by the server, -1 if not known.
+     */
+    private static void submitFileDownload(final SessionPool pool, final WorkQueue queue,
+            final TransferSummary summary, final String remoteFilePath, final String savePath, long size, long time) {
+        queue.submit(() -> {
+            boolean success;
+            try {
+                success = pool.execute((ftpClient, attempt) -> downloadSingleFile(ftpClient, remoteFilePath, savePath));
+            } catch (IOException e) {
+                success = false;
+            }
+
+            recordTransfer(savePath, success, size, time);
+            if (success) {
+                summary.succeeded(new File(savePath).length());
+                System.out.println("DOWNLOADED the file: " + remoteFilePath);
+            } else {
+                summary.failed();
+                System.err.println("COULD NOT download the file: " + remoteFilePath);
+            }
+        }, scheduledSize(size));
+    }
+
+    /**
+     * Download a single file, split into byte ranges retrieved over the sessions of the pool when it is large enough
+     * and more than one segment is configured.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions.
+     * @param remoteFilePath
+     *          Path of the file on the server.
+     * @param savePath
+     *          Path the file is stored at locally.
+     * @param size
+     *          Size of the remote file as listed by the server.
+     * @return  true if the file was downloaded successfully, false otherwise
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static boolean downloadFile(FTPClient ftpClient, SessionPool pool, String remoteFilePath, String savePath,
+            long size) throws IOException {
+        int count = (int) Math.min(segments, size / segmentSize);
+        // A partial copy left by an earlier attempt is continued on one stream
+        if (count <= 1 || (resume && new File(savePath).isFile())) {
+            return downloadSingleFile(ftpClient, remoteFilePath, savePath);
+        }
+        boolean success = downloadSegmented(pool, absolutePath(ftpClient, remoteFilePath), savePath, size, count);
+        if (success && verifier != null) {
+            // The ranges arrive out of order, so this is the one case where the file is read back to be hashed
+            StreamingDigest digest = verifier.newDigest();
+            try {
+                digestFile(digest, new File(savePath), size);
+                success = verifier.check(ftpClient, remoteFilePath, digest.finish(), true);
+            } finally {
+                digest.close();
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Downloads a file as several byte ranges at once. Every range is retrieved on its own session from a restart
+     * offset and written straight to its position in a preallocated ".part" file, which is only renamed to the
+     * requested name once every range has arrived in full.
+     * 
+     * @param pool
+     *          Pool providing the sessions.
+     * @param remoteFilePath
+     *          Absolute path of the file on the server.
+     * @param savePath
+     *          Path the file is stored at locally.
+     * @param size
+     *          Size of the remote file in bytes.
+     * @param count
+     *          Number of byte ranges to split the file into.
+     * @return  true if the file was downloaded successfully, false otherwise
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static boolean downloadSegmented(final SessionPool pool, final String remoteFilePath, String savePath,
+            long size, int count) throws IOException {
+        File downloadFile = new File(savePath);
+        File partFile = new File(savePath + ".part");
+
+        File parentDir = downloadFile.getAbsoluteFile().getParentFile();
+        if (!parentDir.exists()) {
+            parentDir.mkdirs();
+        }
+
+        final AtomicInteger failedSegments = new AtomicInteger();
+        RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+        try {
+            raf.setLength(size);
+            final FileChannel channel = raf.getChannel();
+
+            WorkQueue queue = new WorkQueue(count, transferThreads);
+            long segmentLength = size / count;
+            for (int i = 0; i < count; i++) {
+                final long offset = i * segmentLength;
+                final long length = i == count - 1 ? size - offset : segmentLength;
+                queue.submit(() -> {
+                    boolean success;
+                    try {
+                        success = pool.execute((ftpClient, attempt) -> downloadSegment(ftpClient, remoteFilePath,
+                                channel, offset, length));
+                    } catch (IOException e) {
+                        success = false;
+                    }
+
+                    if (!success) {
+                        failedSegments.incrementAndGet();
+                        System.err.println("COULD NOT download bytes " + offset + "-" + (offset + length - 1)
+                                + " of the file: " + remoteFilePath);
+                    }
+                });
+            }
+            queue.await();
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+
+        if (failedSegments.get() > 0) {
+            return false;
+        }
+        Files.move(partFile.toPath(), downloadFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Retrieves one byte range of a remote file into the same range of a local file.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remoteFilePath
+     *          Path of the file on the server.
+     * @param channel
+     *          Channel of the preallocated local file.
+     * @param offset
+     *          Position of the first byte of the range.
+     * @param length
+     *          Number of bytes in the range.
+     * @return  true if exactly the requested bytes were received, false otherwise
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static boolean downloadSegment(FTPClient ftpClient, String remoteFilePath, FileChannel channel,
+            long offset, long length) throws IOException {
+        ftpClient.setRestartOffset(offset);
+        if (nio && ftpClient instanceof StreamingFTPClient) {
+            Socket socket = openDataConnection(ftpClient, "RETR", remoteFilePath);
+            if (socket == null) {
+                return false;
+            }
+            long received;
+            try {
+                received = receive(ftpClient, socket, channel, offset, length, null);
+            } finally {
+                socket.close();
+            }
+            ftpClient.completePendingCommand();
+            return received == length;
+        }
+
+        InputStream inputStream = ftpClient.retrieveFileStream(remoteFilePath);
+        if (inputStream == null) {
+            return false;
+        }
+
+        CopyStreamListener listener = ftpClient.getCopyStreamListener();
+        long received = 0;
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            while (received < length) {
+                int n = inputStream.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+                if (n < 0) {
+                    break;
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes, offset + received + bytes.position());
+                }
+                received += n;
+                if (listener != null) {
+                    listener.bytesTransferred(received, n, length);
+                }
+            }
+        } finally {
+            inputStream.close();
+        }
+        // Closing before the end of the file aborts the transfer, so the server may answer 426 instead of 226 and
+        // only the byte count tells whether the range arrived
+        ftpClient.completePendingCommand();
+        return received == length;
+    }
+
+    /**
+     * Download a single file from the FTP server
+     * @param ftpClient 
+     *          an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remoteFilePath 
+     *          path of the file on the server
+     * @param savePath 
+     *          path of directory where the file will be stored
+     * @return  true if the file was downloaded successfully, false otherwise
+     * @throws IOException 
+     *          if any network or IO error occurred.
+     * @author www.codejava.net
+     */
+    static boolean downloadSingleFile(FTPClient ftpClient, String remoteFilePath, String savePath)
+            throws IOException {
+        File downloadFile = new File(savePath);
+
+        File parentDir = downloadFile.getParentFile();
+        if (!parentDir.exists()) {
+            parentDir.mkdir();
+        }
+
+        // When resuming, continue a partial local copy from its current length
+        long offset = 0;
+        if (resume && downloadFile.isFile()) {
+            long remoteSize = remoteSize(ftpClient, remoteFilePath);
+            long localSize = downloadFile.length();
+            // a copy written before the server's file last changed is not a part of it, and starts over
+            if (remoteSize >= 0 && !modifiedSince(ftpClient, remoteFilePath, downloadFile.lastModified())) {
+                if (localSize == remoteSize) {
+                    return true;
+                } else if (localSize < remoteSize) {
+                    offset = localSize;
+                    metrics.retried();
+                }
+            }
+        }
+
+        ftpClient.setRestartOffset(offset);
+        StreamingDigest digest = verifier != null ? verifier.newDigest() : null;
+        try {
+            // The digest covers the whole file, so a continued copy's existing part is hashed first
+            if (digest != null && offset > 0) {
+                digestFile(digest, downloadFile, offset);
+            }
+
+            boolean success;
+            if (compression != null && compression.select(ftpClient, downloadFile.getName(), null)) {
+                success = downloadDeflated(ftpClient, remoteFilePath, downloadFile, offset, digest);
+            } else if (nio && ftpClient instanceof StreamingFTPClient) {
+                success = downloadChannel(ftpClient, remoteFilePath, downloadFile, offset, digest);
+            } else {
+                OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(downloadFile, offset > 0));
+                if (digest != null) {
+                    outputStream = digesting(outputStream, digest);
+                }
+                try {
+                    success = ftpClient.retrieveFile(remoteFilePath, outputStream);
+                } finally {
+                    outputStream.close();
+                }
+            }
+            return success && (digest == null || verifier.check(ftpClient, remoteFilePath, digest.finish(), true));
+        } finally {
+            if (digest != null) {
+                digest.close();
+            }
+        }
+    }
+
+    /**
+     * Keeps the local copy of a growing remote file, or of every file of a remote directory, up to date by fetching
+     * only what was appended since the last poll. Each poll costs one round trip on the main session whatever the
+     * number of files (MLST or SIZE for a file, a single MLSD or LIST for a directory), and data is only moved for
+     * the files that grew. Without MLST, whether the path is a file or a directory is found in its parent's listing,
+     * which also gives a file's size when the server has no SIZE. The local copy's length is the offset fetching
+     * continues from, so a follow that is stopped picks up where it left off the next time. A file that shrank, e.g.
+     * a rotated log, is fetched again from the start.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remotePath
+     *          Path of the file or directory on the server.
+     * @param saveDir
+     *          Local directory the file, or a directory of the same name, is kept in.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static void follow(FTPClient ftpClient, String remotePath, String saveDir) throws IOException {
+        String absolute = absolutePath(ftpClient, remotePath);
+        boolean machineListing = ftpClient.hasFeature("MLST");
+        FTPFile probe = machineListing ? ftpClient.mlistFile(absolute) : listedEntry(ftpClient, absolute);
+        boolean directory = probe != null ? probe.isDirectory() : absolute.equals("/");
+        if (probe == null && !directory) {
+            System.err.println("Could not locate specified directory or file.");
+            return;
+        }
+        String name = absolute.substring(absolute.lastIndexOf('/') + 1);
+        File localDir = directory ? new File(saveDir, name) : new File(saveDir);
+        if (!localDir.isDirectory() && !localDir.mkdirs()) {
+            System.err.println("Could not create the local directory " + localDir);
+            return;
+        }
+        System.out.println("Following " + absolute + " every " + followSeconds + " second(s)");
+
+        long appended = 0;
+        long poll = 0;
+        try {
+            while (followPolls == 0 || poll < followPolls) {
+                if (poll++ > 0) {
+                    Thread.sleep(followSeconds * 1000);
+                }
+                if (directory) {
+                    // the listing cache is bypassed, a cached listing would hide the growth being watched for
+                    FTPFile[] files = machineListing ? ftpClient.mlistDir(absolute) : ftpClient.listFiles(absolute);
+                    for (FTPFile f : files) {
+                        if (f != null && f.isFile()) {
+                            appended += fetchAppended(ftpClient, absolute + "/" + f.getName(),
+                                    new File(localDir, f.getName()), f.getSize());
+                        }
+                    }
+                } else {
+                    FTPFile f = machineListing ? ftpClient.mlistFile(absolute) : null;
+                    long size = f != null ? f.getSize() : remoteSize(ftpClient, absolute);
+                    if (size < 0 && !machineListing) {
+                        f = listedEntry(ftpClient, absolute);
+                        size = f != null ? f.getSize() : -1;
+                    }
+                    appended += fetchAppended(ftpClient, absolute, new File(localDir, name), size);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            listingCache.invalidate(absolute);
+        }
+        System.out.println("Followed " + absolute + " for " + poll + " poll(s), appended " + appended + " byte(s)");
+    }
+
+    /**
+     * Finds a remote file or directory in the listing of its parent, bypassing the listing cache.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remotePath
+     *          Absolute path of the file or directory on the server.
+     * @return  Its entry, or null if the parent does not list it
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static FTPFile listedEntry(FTPClient ftpClient, String remotePath) throws IOException {
+        int slash = remotePath.lastIndexOf('/');
+        String name = remotePath.substring(slash + 1);
+        for (FTPFile aFile : ftpClient.listFiles(slash <= 0 ? "/" : remotePath.substring(0, slash))) {
+            if (aFile != null && aFile.getName().equals(name)) {
+                return aFile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends to a local copy the part of the remote file it does not have yet, with REST so only that part is
+     * sent.
+     * 
+     * @param ftpClient
+     *          The session to fetch on.
+     * @param remoteFilePath
+     *          Absolute path of the file on the server.
+     * @param localFile
+     *          The local copy, which may not exist yet.
+     * @param remoteSize
+     *          Size of the remote file as just listed, or -1 if it is unknown or gone.
+     * @return  The number of bytes appended
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static long fetchAppended(FTPClient ftpClient, String remoteFilePath, File localFile, long remoteSize)
+            throws IOException {
+        long offset = localFile.isFile() ? localFile.length() : 0;
+        if (remoteSize < 0 || remoteSize == offset) {
+            return 0;
+        }
+        if (remoteSize < offset) {
+            System.out.println("RESTARTED " + localFile.getPath() + ", the remote file shrank to " + remoteSize
+                    + " byte(s)");
+            offset = 0;
+        }
+
+        ftpClient.setRestartOffset(offset);
+        boolean success;
+        if (nio && ftpClient instanceof StreamingFTPClient) {
+            success = downloadChannel(ftpClient, remoteFilePath, localFile, offset, null);
+        } else {
+            OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(localFile, offset > 0));
+            try {
+                success = ftpClient.retrieveFile(remoteFilePath, outputStream);
+            } finally {
+                outputStream.close();
+            }
+        }
+        if (!success) {
+            System.err.println("Could not fetch the new data of " + remoteFilePath);
+            return 0;
+        }
+        // the file may have grown again since it was listed, everything the server sent counts
+        long appended = localFile.length() - offset;
+        System.out.println("APPENDED " + appended + " byte(s) to " + localFile.getPath());
+        return appended;
+    }
+
+    /**
+     * Crawls a remote tree into an index and saves it, so find and du can be answered from disk, or only hands it
+     * back when the caller just needs the listings, as sync does, leaving the saved index alone. Directories are
+     * listed breadth first over the sessions of the pool, so a wide tree keeps every session busy from its second
+     * level on. With an earlier index of the same directory and a server that supports MLST, only the directories
+     * whose modification time changed are listed again; the others cost one MLST each and keep their indexed
+     * listing. A directory's time only changes when entries are added, removed or renamed in it, so a file
+     * rewritten in place keeps its indexed size until the next full crawl.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions.
+     * @param remoteDirPath
+     *          Path of the directory on the server.
+     * @param full
+     *          true to list every directory again, false to reuse the unchanged ones of the last index.
+     * @param save
+     *          true to save the index and print a summary of the crawl, false to only report failed listings.
+     * @return  The new index, or null if the directory could not be found
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static RemoteIndex crawl(FTPClient ftpClient, SessionPool pool, String remoteDirPath, boolean full,
+            boolean save) throws IOException {
+        String root = absolutePath(ftpClient, remoteDirPath);
+        boolean machineListing = ftpClient.hasFeature("MLST");
+        RemoteIndex index = new RemoteIndex(pool.getIdentity(), root);
+        if (machineListing) {
+            FTPFile probe = ftpClient.mlistFile(root);
+            if (probe == null || !probe.isDirectory()) {
+                System.err.println("Could not locate specified directory.");
+                return null;
+            }
+            index.setRootTime(timeOf(probe));
+        }
+
+        // listings are only reused when MLST can tell which directories changed
+        RemoteIndex previous = full || !machineListing ? null : RemoteIndex.load(pool.getIdentity(), root);
+        CrawlJob job = new CrawlJob(sessions > 1 ? null : ftpClient, pool,
+                new WorkQueue(Math.max(sessions, 1), transferThreads), index, previous, machineListing);
+        job.list("", index.getRootTime());
+        job.queue.await();
+        if (save) {
+            index.save();
+            job.print();
+        } else {
+            for (String failure : job.failures) {
+                System.err.println(failure);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @param aFile
+     *          A listed file or directory.
+     * @return  Its modification time in milliseconds since the epoch, -1 if the server did not give one
+     */
+    private static long timeOf(FTPFile aFile) {
+        return aFile.getTimestamp() == null ? -1 : aFile.getTimestamp().getTimeInMillis();
+    }
+
+    /**
+     * A crawl of a remote tree into an index. Each directory is listed on whichever session is free and its sub
+     * directories are queued behind the directories already found, so the tree is walked level by level.
+     */
+    private static class CrawlJob {
+        final FTPClient main;
+        final SessionPool pool;
+        final WorkQueue queue;
+        final RemoteIndex index;
+        final RemoteIndex previous;
+        final boolean machineListing;
+        final AtomicLong listed = new AtomicLong();
+        final AtomicLong reused = new AtomicLong();
+        final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+        final long started = System.nanoTime();
+
+        /**
+         * @param main
+         *          The main session, which lists every directory when set, or null to list on the pool's
+         *          sessions.
+         */
+        CrawlJob(FTPClient main, SessionPool pool, WorkQueue queue, RemoteIndex index, RemoteIndex previous,
+                boolean machineListing) {
+            this.main = main;
+            this.pool = pool;
+            this.queue = queue;
+            this.index = index;
+            this.previous = previous;
+            this.machineListing = machineListing;
+        }
+
+        /**
+         * Queues the crawl of one directory, which in turn queues its sub directories.
+         * 
+         * @param path
+         *          Path of the directory relative to the indexed one.
+         * @param time
+         *          Its modification time as listed in its parent, -1 if its parent's listing was reused and the
+         *          time has to be asked for.
+         */
+        void list(final String path, final long time) {
+            queue.submit(() -> {
+                boolean unchanged;
+                try {
+                    unchanged = main != null ? listDirectory(main, path, time)
+                            : pool.execute((ftpClient, attempt) -> listDirectory(ftpClient, path, time));
+                } catch (IOException e) {
+                    failures.add("COULD NOT list the directory: " + index.remotePath(path) + " (" + e.getMessage()
+                            + ")");
+                    return;
+                }
+
+                for (RemoteIndex.Entry entry : index.get(path)) {
+                    if (entry.directory) {
+                        // the times of a reused listing are those of the last crawl, not the current ones
+                        list(RemoteIndex.child(path, entry.name), unchanged ? -1 : entry.time);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Records the listing of one directory in the index, taken from the previous index if the directory did
+         * not change since, and from the server otherwise.
+         * 
+         * @return  true if the previous listing was reused
+         */
+        boolean listDirectory(FTPClient ftpClient, String path, long time) throws IOException {
+            String remoteDir = index.remotePath(path);
+            List<RemoteIndex.Entry> known = previous != null ? previous.get(path) : null;
+            if (known != null) {
+                if (time < 0) {
+                    FTPFile probe = ftpClient.mlistFile(remoteDir);
+                    time = probe != null ? timeOf(probe) : -1;
+                    index.setTime(path, time);
+                }
+                RemoteIndex.Entry entry = path.isEmpty() ? null : previous.entry(path);
+                long knownTime = entry != null ? entry.time : path.isEmpty() ? previous.getRootTime() : -1;
+                if (time >= 0 && time == knownTime) {
+                    index.put(path, known);
+                    reused.incrementAndGet();
+                    return true;
+                }
+            }
+
+            FTPFile[] files = machineListing ? ftpClient.mlistDir(remoteDir) : ftpClient.listFiles(remoteDir);
+            List<RemoteIndex.Entry> entries = new ArrayList<RemoteIndex.Entry>(files.length);
+            for (FTPFile aFile : files) {
+                if (aFile == null || aFile.getName().equals(".") || aFile.getName().equals("..")
+                        || !(aFile.isDirectory() || aFile.isFile())) {
+                    continue;
+                }
+                entries.add(new RemoteIndex.Entry(aFile.getName(), aFile.isDirectory(), aFile.getSize(),
+                        timeOf(aFile)));
+            }
+            index.put(path, entries);
+            listed.incrementAndGet();
+            return false;
+        }
+
+        /**
+         * Prints the totals and, on stderr, every failure.
+         */
+        void print() {
+            final long[] totals = new long[2];
+            index.walk("", (path, entry) -> {
+                if (!entry.directory) {
+                    totals[0]++;
+                    totals[1] += entry.size;
+                }
+            });
+            double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+            System.out.println(String.format("INDEXED %s: %d directory(ies) listed, %d unchanged, %d file(s), "
+                    + "%d byte(s) in %.2f s, %d failed", index.getRoot(), listed.get(), reused.get(), totals[0],
+                    totals[1], seconds, failures.size()));
+            for (String failure : failures) {
+                System.err.println(failure);
+            }
+        }
+    }
+
+    /**
+     * Finds the index to answer a query about a remote directory from: the directory's own index or that of the
+     * nearest indexed directory above it, unless refreshing is enabled or there is none, in which case the
+     * directory is crawled first.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions.
+     * @param remoteDir
+     *          Absolute path of the directory on the server.
+     * @return  An index covering the directory, or null if it could not be crawled
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static RemoteIndex indexFor(FTPClient ftpClient, SessionPool pool, String remoteDir) throws IOException {
+        if (!indexRefresh) {
+            String path = remoteDir;
+            while (true) {
+                RemoteIndex index = RemoteIndex.load(pool.getIdentity(), path);
+                if (index != null) {
+                    return index;
+                }
+                int slash = path.lastIndexOf('/');
+                if (slash < 0 || path.equals("/")) {
+                    break;
+                }
+                path = slash == 0 ? "/" : path.substring(0, slash);
+            }
+        }
+        return crawl(ftpClient, pool, remoteDir, false, true);
+    }
+
+    /**
+     * Prints the remote path of every file and directory under a remote directory whose name matches a pattern,
+     * answered from the index.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions, should the directory need crawling.
+     * @param remoteDirPath
+     *          Path of the directory on the server.
+     * @param pattern
+     *          Name pattern, where '*' matches any run of characters and '?' any single one.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static void find(FTPClient ftpClient, SessionPool pool, String remoteDirPath, String pattern)
+            throws IOException {
+        String remoteDir = absolutePath(ftpClient, remoteDirPath);
+        final RemoteIndex index = indexFor(ftpClient, pool, remoteDir);
+        String path = index == null ? null : index.relativePath(remoteDir);
+        if (path == null || (!path.isEmpty() && index.get(path) == null)) {
+            System.err.println("Could not locate specified directory.");
+            return;
+        }
+
+        StringBuilder regex = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        final Pattern names = Pattern.compile(regex.toString());
+        final long[] matches = new long[1];
+        index.walk(path, (child, entry) -> {
+            if (names.matcher(entry.name).matches()) {
+                System.out.println(index.remotePath(child) + (entry.directory ? "/" : ""));
+                matches[0]++;
+            }
+        });
+        System.out.println(matches[0] + " match(es) in the index of " + index.getRoot() + " from "
+                + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(index.getCreated()));
+    }
+
+    /**
+     * Prints the number of bytes and files under each sub directory of a remote directory, and under the directory
+     * as a whole, answered from the index.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions, should the directory need crawling.
+     * @param remoteDirPath
+     *          Path of the directory on the server.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static void diskUsage(FTPClient ftpClient, SessionPool pool, String remoteDirPath) throws IOException {
+        String remoteDir = absolutePath(ftpClient, remoteDirPath);
+        RemoteIndex index = indexFor(ftpClient, pool, remoteDir);
+        String path = index == null ? null : index.relativePath(remoteDir);
+        List<RemoteIndex.Entry> entries = path == null ? null : index.get(path);
+        if (entries == null) {
+            System.err.println("Could not locate specified directory.");
+            return;
+        }
+
+        long totalBytes = 0;
+        long totalFiles = 0;
+        for (RemoteIndex.Entry entry : entries) {
+            if (!entry.directory) {
+                totalBytes += entry.size;
+                totalFiles++;
+                continue;
+            }
+            final long[] usage = new long[2];
+            String child = RemoteIndex.child(path, entry.name);
+            index.walk(child, (descendant, item) -> {
+                if (!item.directory) {
+                    usage[0] += item.size;
+                    usage[1]++;
+                }
+            });
+            System.out.println(String.format("%15d %10d %s/", usage[0], usage[1], index.remotePath(child)));
+            totalBytes += usage[0];
+            totalFiles += usage[1];
+        }
+        System.out.println(String.format("%15d %10d %s", totalBytes, totalFiles, remoteDir));
+    }
+
+    /**
+     * Copies a file or directory from the connected server to another server without the data passing through this
+     * machine. For every file the source server is put in passive mode, the target server is pointed at it with
+     * PORT, and STOR and RETR make the two exchange the data directly. Directories are copied recursively, with
+     * several files in flight at once when more than one session is configured. Both servers must allow it: many
+     * refuse a PORT to an address other than the client's unless FXP is enabled.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions on the connected server.
+     * @param target
+     *          Host name or address of the target server, optionally followed by ':' and its port, with an IPv6
+     *          address then in brackets.
+     * @param credentials
+     *          User name and password on the target server, separated by ':'.
+     * @param sourcePath
+     *          Path of the file or directory on the connected server.
+     * @param targetPath
+     *          Path it is copied to on the target server.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static void copyToServer(FTPClient ftpClient, SessionPool pool, String target, String credentials,
+            String sourcePath, String targetPath) throws IOException {
+        // an IPv6 address is written in brackets when a port follows it, e.g. [::1]:2121
+        String host = target;
+        String port = "";
+        if (target.startsWith("[") && target.indexOf(']') > 0) {
+            host = target.substring(1, target.indexOf(']'));
+            port = target.substring(target.indexOf(']') + 1);
+        } else if (target.indexOf(':') == target.lastIndexOf(':') && target.indexOf(':') >= 0) {
+            host = target.substring(0, target.indexOf(':'));
+            port = target.substring(target.indexOf(':'));
+        }
+        if (!port.isEmpty() && !port.matches(":\\d{1,5}")) {
+            System.err.println("Expected the target as host, host:port or [IPv6 address]:port.");
+            return;
+        }
+        String[] login = credentials.split(":", 2);
+        if (login.length != 2) {
+            System.err.println("Expected the target's credentials as user:password.");
+            return;
+        }
+        if (ftpClient instanceof SecureFTPClient) {
+            // the two servers would have to negotiate TLS with each other (SSCN or CPSV), which is rarely supported
+            System.err.println("fxp is not supported over FTPS.");
+            return;
+        }
+
+        String source = absolutePath(ftpClient, sourcePath);
+        FTPFile probe = ftpClient.hasFeature("MLST") ? ftpClient.mlistFile(source) : null;
+        FTPFile[] files = probe != null ? new FTPFile[] { probe } : listFiles(ftpClient, source);
+        if (files.length == 0) {
+            System.err.println("Could not locate specified directory or file.");
+            return;
+        }
+        boolean directory = files.length > 1 || files[0].isDirectory();
+
+        SessionPool targetPool = new SessionPool(host, port.isEmpty() ? 0 : Integer.parseInt(port.substring(1)),
+                login[0], login[1], metrics);
+        targetPool.setRetries(retries);
+        targetPool.setHealthCheckMillis(healthCheckSeconds * 1000);
+        try {
+            CopyJob job = new CopyJob(sessions > 1 ? null : ftpClient, pool, targetPool,
+                    new WorkQueue(Math.max(sessions, 1), transferThreads));
+            if (directory) {
+                FTPClient session = targetPool.borrow();
+                try {
+                    // fails harmlessly when the directory is already there
+                    session.makeDirectory(targetPath);
+                } catch (IOException e) {
+                    targetPool.invalidate(session);
+                    throw e;
+                }
+                targetPool.release(session);
+                job.list(source, targetPath);
+            } else {
+                job.copy(source, targetPath, files[0].getSize());
+            }
+            job.queue.await();
+            job.summary.print();
+        } finally {
+            targetPool.close();
+        }
+    }
+
+    /**
+     * A server-to-server copy. Each source directory is listed on a free session of the source server, its sub
+     * directories are created on the target server before their own listing is queued, and each file is copied
+     * over a pair of sessions, one on each server.
+     */
+    private static class CopyJob {
+        final FTPClient main;
+        final SessionPool pool;
+        final SessionPool targetPool;
+        final WorkQueue queue;
+        final TransferSummary summary = new TransferSummary("Copied");
+
+        /**
+         * @param main
+         *          The main session, which is the source of every copy when set, or null to use the pool's
+         *          sessions.
+         */
+        CopyJob(FTPClient main, SessionPool pool, SessionPool targetPool, WorkQueue queue) {
+            this.main = main;
+            this.pool = pool;
+            this.targetPool = targetPool;
+            this.queue = queue;
+        }
+
+        /**
+         * Queues the listing of a source directory whose target directory already exists.
+         */
+        void list(final String sourceDir, final String targetDir) {
+            queue.submit(() -> {
+                FTPClient source = null;
+                FTPClient target = null;
+                try {
+                    source = main != null ? main : pool.borrow();
+                    target = targetPool.borrow();
+                    final FTPClient session = target;
+                    // the handler runs while the source session is still listing, so it only uses the target one
+                    streamListing(source, sourceDir, aFile -> {
+                        String name = aFile.getName();
+                        if (name.equals(".") || name.equals("..")) {
+                            return;
+                        }
+                        if (aFile.isDirectory()) {
+                            String newDir = targetDir + "/" + name;
+                            if (session.makeDirectory(newDir)) {
+                                System.out.println("CREATED the directory: " + newDir);
+                            } else {
+                                System.err.println("COULD NOT create the directory: " + newDir);
+                            }
+                            list(sourceDir + "/" + name, newDir);
+                        } else if (aFile.isFile()) {
+                            copy(sourceDir + "/" + name, targetDir + "/" + name, aFile.getSize());
+                        }
+                    });
+                    release(source, target);
+                } catch (IOException e) {
+                    invalidate(source, target);
+                    System.err.println("COULD NOT list the directory: " + sourceDir + " (" + e.getMessage() + ")");
+                }
+            });
+        }
+
+        /**
+         * Queues the copy of one file.
+         */
+        void copy(final String sourceFile, final String targetFile, final long size) {
+            queue.submit(() -> {
+                FTPClient source = null;
+                FTPClient target = null;
+                boolean success;
+                try {
+                    source = main != null ? main : pool.borrow();
+                    target = targetPool.borrow();
+                    success = copyFile(source, target, sourceFile, targetFile);
+                    release(source, target);
+                } catch (IOException e) {
+                    invalidate(source, target);
+                    success = false;
+                }
+
+                if (success) {
+                    summary.succeeded(size);
+                    System.out.println("COPIED the file: " + sourceFile + " to " + targetFile);
+                } else {
+                    summary.failed();
+                    System.err.println("COULD NOT copy the file: " + sourceFile);
+                }
+            }, scheduledSize(size));
+        }
+
+        void release(FTPClient source, FTPClient target) {
+            if (source != main) {
+                pool.release(source);
+            }
+            targetPool.release(target);
+        }
+
+        void invalidate(FTPClient source, FTPClient target) {
+            if (source != null && source != main) {
+                pool.invalidate(source);
+            }
+            if (target != null) {
+                targetPool.invalidate(target);
+            }
+        }
+    }
+
+    /**
+     * Has one server send a file straight to another: the source listens in passive mode, the target connects to
+     * it as if the source were the client, and the two commands complete once the data has gone through. Both
+     * sessions are returned to local passive mode afterwards so they can be used for ordinary transfers again.
+     * 
+     * @param source
+     *          A session on the server the file is read from.
+     * @param target
+     *          A session on the server the file is written to.
+     * @param sourceFile
+     *          Path of the file on the source server.
+     * @param targetFile
+     *          Path of the file on the target server.
+     * @return  true if both servers reported the transfer complete, false otherwise
+     * @throws IOException
+     *          if any network or IO error occurred, or a server left its side of the transfer hanging.
+     */
+    private static boolean copyFile(FTPClient source, FTPClient target, String sourceFile, String targetFile)
+            throws IOException {
+        try {
+            // the servers talk to each other in stream mode, whatever a compressed transfer left the sessions in
+            if (source instanceof StreamingFTPClient) {
+                ((StreamingFTPClient) source).setStreamMode();
+            }
+            if (target instanceof StreamingFTPClient) {
+                ((StreamingFTPClient) target).setStreamMode();
+            }
+            if (!source.enterRemotePassiveMode()) {
+                return false;
+            }
+            if (!target.enterRemoteActiveMode(InetAddress.getByName(source.getPassiveHost()),
+                    source.getPassivePort())) {
+                return false;
+            }
+            // the target connects to the source as soon as it accepts STOR, and waits there for the data
+            if (!target.remoteStore(targetFile)) {
+                return false;
+            }
+            if (!source.remoteRetrieve(sourceFile)) {
+                throw new IOException("The source refused to send " + sourceFile + ": "
+                        + source.getReplyString().trim());
+            }
+            boolean sent = source.completePendingCommand();
+            boolean stored = target.completePendingCommand();
+            return sent && stored;
+        } finally {
+            source.enterLocalPassiveMode();
+            target.enterLocalPassiveMode();
+        }
+    }
+
+    /**
+     * A file a sync found new or changed, handed from the comparison of both trees to its transfer.
+     */
+    private static class SyncItem {
+        final String relativePath;
+        final String remotePath;
+        final File local;
+        /**
+         * Modification time of the remote file, -1 if not known.
+         */
+        final long remoteTime;
+        /**
+         * Size of the copy on the source side, used to schedule the transfer.
+         */
+        final long size;
+
+        SyncItem(String relativePath, String remotePath, File local, long remoteTime, long size) {
+            this.relativePath = relativePath;
+            this.remotePath = remotePath;
+            this.local = local;
+            this.remoteTime = remoteTime;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Brings a target directory in step with a source directory, transferring only the files that are new or
+     * changed. The remote tree is listed by a crawl, as for index but without saving one, with MLSD when the
+     * server supports it, which gives exact sizes and times, and with LIST otherwise. A manifest of the last sync
+     * lets unchanged files be recognised even when the server's times are too coarse to compare.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions when more than one session is configured.
+     * @param remoteDirPath
+     *          Absolute path of the directory on the server.
+     * @param localDirPath
+     *          Path of the local directory.
+     * @param download
+     *          true to make the local directory match the remote one, false for the other way round.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static void syncDirectory(final FTPClient ftpClient, final SessionPool pool, String remoteDirPath,
+            String localDirPath, final boolean download) throws IOException {
+        File localDir = new File(localDirPath).getAbsoluteFile();
+        final SyncManifest manifest = new SyncManifest(pool.getIdentity() + " " + localDir.getPath() + " "
+                + remoteDirPath);
+        final TransferSummary summary = new TransferSummary(download ? "Downloaded" : "Uploaded");
+        final List<SyncItem> changed = new ArrayList<SyncItem>();
+        long[] counts = new long[2];
+
+        if (download) {
+            localDir.mkdirs();
+        } else {
+            // fails harmlessly when the directory is already there
+            ftpClient.makeDirectory(remoteDirPath);
+        }
+        long[] checked = verifier != null ? verifier.totals() : null;
+        long[] deflated = compression != null ? compression.totals() : null;
+        boolean machineListing = ftpClient.hasFeature("MLST");
+        RemoteIndex remote = crawl(ftpClient, pool, remoteDirPath, true, false);
+        if (remote == null) {
+            return;
+        }
+        compareDirectory(ftpClient, pool, manifest, remote, localDir, "", download, machineListing, changed, counts);
+
+        WorkQueue queue = sessions > 1 ? new WorkQueue(sessions, transferThreads) : null;
+        for (final SyncItem item : changed) {
+            if (queue == null) {
+                onMain(ftpClient, pool, (session, attempt) -> {
+                    syncFile(session, manifest, summary, item, download);
+                    return null;
+                });
+                continue;
+            }
+            queue.submit(() -> {
+                try {
+                    pool.execute((session, attempt) -> {
+                        syncFile(session, manifest, summary, item, download);
+                        return null;
+                    });
+                } catch (IOException e) {
+                    summary.failed();
+                    System.err.println("COULD NOT sync the file: " + item.relativePath + " (" + e.getMessage() + ")");
+                }
+            }, scheduledSize(item.size));
+        }
+        if (queue != null) {
+            queue.await();
+        }
+
+        manifest.save();
+        summary.print();
+        if (checked != null) {
+            verifier.printSummary(checked);
+        }
+        if (deflated != null) {
+            compression.printSummary(deflated);
+        }
+        System.out.println(counts[0] + " file(s) unchanged, " + counts[1] + " deleted");
+    }
+
+    /**
+     * Compares one directory of both trees, recursing into the sub directories of the source side. Unchanged files
+     * are recorded in the manifest straight away, changed ones are added to the list of files to transfer, and, when
+     * sync deletes are enabled, files missing from the source are removed from the target. A remote directory the
+     * crawl could not list is left alone, as nothing is known of what is in it.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool whose settings the main session is reconnected with if its connection drops.
+     * @param manifest
+     *          Manifest of the last sync, updated with the unchanged files.
+     * @param remote
+     *          The remote tree as just crawled.
+     * @param localDir
+     *          The matching local directory.
+     * @param relativeDir
+     *          Path of the directory relative to the synced directories, "" for the top.
+     * @param download
+     *          true if the remote side is the source.
+     * @param machineListing
+     *          true if the server supports MLSD.
+     * @param changed
+     *          Receives every file to transfer.
+     * @param counts
+     *          Running totals of unchanged and deleted files.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static void compareDirectory(FTPClient ftpClient, SessionPool pool, SyncManifest manifest,
+            RemoteIndex remote, File localDir, String relativeDir, boolean download, boolean machineListing,
+            List<SyncItem> changed, long[] counts) throws IOException {
+        String remoteDir = remote.remotePath(relativeDir);
+        // a directory the upload is about to create has no listing either, and is simply empty
+        List<RemoteIndex.Entry> remoteFiles = remote.get(relativeDir);
+        if (remoteFiles == null && download) {
+            return;
+        }
+        File[] localFiles = localDir.listFiles();
+        if (localFiles == null) {
+            localFiles = new File[0];
+        }
+
+        Map<String, RemoteIndex.Entry> remoteByName = new HashMap<String, RemoteIndex.Entry>();
+        if (remoteFiles != null) {
+            for (RemoteIndex.Entry entry : remoteFiles) {
+                remoteByName.put(entry.name, entry);
+            }
+        }
+        Set<String> localNames = new HashSet<String>();
+        for (File item : localFiles) {
+            localNames.add(item.getName());
+        }
+
+        if (download) {
+            for (RemoteIndex.Entry entry : remoteFiles) {
+                String remotePath = remoteDir + "/" + entry.name;
+                String relativePath = RemoteIndex.child(relativeDir, entry.name);
+                File local = new File(localDir, entry.name);
+                if (entry.directory) {
+                    if (!local.isDirectory() && local.mkdirs()) {
+                        System.out.println("CREATED the directory: " + local.getPath());
+                    }
+                    compareDirectory(ftpClient, pool, manifest, remote, local, relativePath, true, machineListing,
+                            changed, counts);
+                } else {
+                    compareFile(ftpClient, manifest, entry, remotePath, local, relativePath, true, machineListing,
+                            changed, counts);
+                }
+            }
+            if (syncDelete) {
+                for (File item : localFiles) {
+                    if (!remoteByName.containsKey(item.getName())) {
+                        deleteLocal(item);
+                        counts[1]++;
+                    }
+                }
+            }
+        } else {
+            for (File item : localFiles) {
+                String name = item.getName();
+                String remotePath = remoteDir + "/" + name;
+                String relativePath = RemoteIndex.child(relativeDir, name);
+                RemoteIndex.Entry entry = remoteByName.get(name);
+                if (item.isDirectory()) {
+                    if (entry == null) {
+                        if (ftpClient.makeDirectory(remotePath)) {
+                            System.out.println("CREATED the directory: " + remotePath);
+                        } else {
+                            System.err.println("COULD NOT create the directory: " + remotePath);
+                        }
+                    }
+                    compareDirectory(ftpClient, pool, manifest, remote, item, relativePath, false, machineListing,
+                            changed, counts);
+                } else if (item.isFile()) {
+                    compareFile(ftpClient, manifest, entry != null && !entry.directory ? entry : null, remotePath,
+                            item, relativePath, false, machineListing, changed, counts);
+                }
+            }
+            if (syncDelete) {
+                for (RemoteIndex.Entry entry : remoteByName.values()) {
+                    if (localNames.contains(entry.name)) {
+                        continue;
+                    }
+                    String remotePath = remoteDir + "/" + entry.name;
+                    if (entry.directory) {
+                        removeDirectory(ftpClient, pool, remotePath, "");
+                    } else if (ftpClient.deleteFile(remotePath)) {
+                        System.out.println("DELETED the file: " + remotePath);
+                    } else {
+                        System.err.println("CANNOT delete the file: " + remotePath);
+                    }
+                    counts[1]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decides whether one file differs between the source and the target. The manifest of the last sync is
+     * trusted first; without an entry, a size difference means a change, and otherwise the times decide if the
+     * server gives exact ones (through MLSD or MDTM). When nothing can tell, the file is transferred.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param manifest
+     *          Manifest of the last sync.
+     * @param remote
+     *          The remote file as crawled, null if it does not exist.
+     * @param remotePath
+     *          Absolute path of the file on the server.
+     * @param local
+     *          The local file, which may not exist.
+     * @param relativePath
+     *          Path of the file relative to the synced directories.
+     * @param download
+     *          true if the remote side is the source.
+     * @param machineListing
+     *          true if the listing came from MLSD and carries exact times.
+     * @param changed
+     *          Receives the file if it needs transferring.
+     * @param counts
+     *          Running totals of unchanged and deleted files.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static void compareFile(FTPClient ftpClient, SyncManifest manifest, RemoteIndex.Entry remote,
+            String remotePath, File local, String relativePath, boolean download, boolean machineListing,
+            List<SyncItem> changed, long[] counts) throws IOException {
+        boolean transfer;
+        long remoteSize = remote == null ? -1 : remote.size;
+        long remoteTime = remote == null || !machineListing ? -1 : remote.time;
+        long localSize = local.length();
+        long localTime = local.lastModified();
+        SyncManifest.Entry entry = manifest.get(relativePath);
+
+        if (remote == null || !local.isFile()) {
+            transfer = true;
+        } else if (entry != null) {
+            transfer = !entry.matches(remoteSize, remoteTime, localSize, localTime);
+        } else if (remoteSize != localSize) {
+            transfer = true;
+        } else {
+            if (remoteTime < 0 && ftpClient.hasFeature("MDTM")) {
+                FTPFile times = ftpClient.mdtmFile(remotePath);
+                if (times != null && times.getTimestamp() != null) {
+                    remoteTime = times.getTimestamp().getTimeInMillis();
+                }
+            }
+            if (remoteTime < 0) {
+                transfer = true;
+            } else if (download) {
+                transfer = remoteTime / 1000 > localTime / 1000;
+            } else {
+                transfer = localTime / 1000 > remoteTime / 1000;
+            }
+        }
+
+        if (transfer) {
+            changed.add(new SyncItem(relativePath, remotePath, local, remoteTime, download ? remoteSize : localSize));
+        } else {
+            manifest.put(relativePath, remoteSize, remoteTime, localSize, localTime);
+            counts[0]++;
+        }
+    }
+
+    /**
+     * Transfers one changed file of a sync and records its new state in the manifest. Downloaded files take the
+     * remote modification time, and uploaded files are given the local one where the server allows it (MFMT), so
+     * the next sync finds both copies equal.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param manifest
+     *          Manifest the new state is recorded in.
+     * @param summary
+     *          Totals the transfer is counted in.
+     * @param item
+     *          The file, as found by compareFile.
+     * @param download
+     *          true if the remote side is the source.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static void syncFile(FTPClient ftpClient, SyncManifest manifest, TransferSummary summary, SyncItem item,
+            boolean download) throws IOException {
+        String remotePath = item.remotePath;
+        String localPath = item.local.getPath();
+        File local = item.local;
+        boolean success;
+        long remoteTime = -1;
+
+        if (download) {
+            success = downloadSingleFile(ftpClient, remotePath, localPath);
+            if (success) {
+                remoteTime = item.remoteTime;
+                if (remoteTime < 0 && ftpClient.hasFeature("MDTM")) {
+                    FTPFile times = ftpClient.mdtmFile(remotePath);
+                    if (times != null && times.getTimestamp() != null) {
+                        remoteTime = times.getTimestamp().getTimeInMillis();
+                    }
+                }
+                if (remoteTime >= 0) {
+                    local.setLastModified(remoteTime);
+                }
+            }
+        } else {
+            success = uploadSingleFile(ftpClient, remotePath, localPath);
+            if (success) {
+                SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss", Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                if (ftpClient.setModificationTime(remotePath, format.format(local.lastModified()))) {
+                    remoteTime = local.lastModified() / 1000 * 1000;
+                }
+            }
+        }
+
+        if (success) {
+            manifest.put(item.relativePath, local.length(), remoteTime, local.length(), local.lastModified());
+            summary.succeeded(local.length());
+            System.out.println((download ? "DOWNLOADED the file: " : "UPLOADED a file to: ") + remotePath);
+        } else {
+            summary.failed();
+            System.err.println((download ? "COULD NOT download the file: " : "COULD NOT upload the file: ")
+                    + remotePath);
+        }
+    }
+
+    /**
+     * Deletes a local file, or a local directory with everything inside it.
+     * 
+     * @param file
+     *          The file or directory to delete.
+     */
+    private static void deleteLocal(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteLocal(child);
+            }
+        }
+        if (file.delete()) {
+            System.out.println("DELETED the file: " + file.getPath());
+        } else {
+            System.err.println("CANNOT delete the file: " + file.getPath());
+        }
+    }
+
+    /**
+     * List the contents of the current working directory on the FTP server.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     * @author Luis Guillermo Pedroza-Soto
+     */
+    private static void listDirectory(FTPClient ftpClient) throws IOException {
+        streamListing(ftpClient, "", aFile -> {
+            if (!aFile.getName().equals(".") && !aFile.getName().equals("..")) {
+                System.out.println(aFile.getName());
+            }
+        });
+    }
+
+    /**
+     * Removes a remote directory recursively, on the main session or, when more than one session is configured,
+     * spread over the sessions of the pool.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions.
+     * @param remoteDirPath
+     *          Path of the directory on the server.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    static void removeDirectory(FTPClient ftpClient, SessionPool pool, String remoteDirPath)
+            throws IOException {
+        if (sessions <= 1) {
+            removeDirectory(ftpClient, pool, remoteDirPath, "");
+            return;
+        }
+
+        RemovalJob job = new RemovalJob(pool, new WorkQueue(sessions, transferThreads));
+        job.list(new RemovalNode(absolutePath(ftpClient, remoteDirPath), null));
+        job.queue.await();
+        job.print();
+    }
+
+    /**
+     * A remote directory being removed by a parallel rmdir, with a count of what still has to go before the
+     * directory itself can be removed: its listing plus every entry found in it.
+     */
+    private static class RemovalNode {
+        final String path;
+        final RemovalNode parent;
+        final AtomicInteger pending = new AtomicInteger(1);
+
+        RemovalNode(String path, RemovalNode parent) {
+            this.path = path;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * A parallel rmdir. Directories are listed as they are discovered, each file is deleted on whichever session is
+     * free as soon as it is listed, and a directory is removed once its listing has finished and everything in it
+     * is gone, so removal proceeds bottom-up without waiting for the whole tree to be discovered.
+     */
+    private static class RemovalJob {
+        final SessionPool pool;
+        final WorkQueue queue;
+        final AtomicLong deletedFiles = new AtomicLong();
+        final AtomicLong removedDirs = new AtomicLong();
+        final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<String>();
+
+        RemovalJob(SessionPool pool, WorkQueue queue) {
+            this.pool = pool;
+            this.queue = queue;
+        }
+
+        /**
+         * Queues the listing of a directory, which in turn queues the deletion of its files and the listing of its
+         * sub directories.
+         */
+        void list(final RemovalNode dir) {
+            queue.submit(() -> {
+                // a listing repeated after a dropped connection only queues the entries the lost one had not reached
+                final Set<String> queued = ConcurrentHashMap.newKeySet();
+                try {
+                    pool.execute((ftpClient, attempt) -> {
+                        streamListing(ftpClient, dir.path, aFile -> {
+                            String name = aFile.getName();
+                            if (name.equals(".") || name.equals("..") || !queued.add(name)) {
+                                return;
+                            }
+                            dir.pending.incrementAndGet();
+                            if (aFile.isDirectory()) {
+                                list(new RemovalNode(dir.path + "/" + name, dir));
+                            } else {
+                                delete(dir, dir.path + "/" + name);
+                            }
+                        });
+                        return null;
+                    });
+                } catch (IOException e) {
+                    failures.add("COULD NOT list the directory: " + dir.path + " (" + e.getMessage() + ")");
+                }
+                done(dir);
+            });
+        }
+
+        /**
+         * Queues the deletion of one file.
+         */
+        void delete(final RemovalNode dir, final String filePath) {
+            queue.submit(() -> {
+                if (run("DELE", filePath)) {
+                    deletedFiles.incrementAndGet();
+                } else {
+                    failures.add("CANNOT delete the file: " + filePath);
+                }
+                done(dir);
+            });
+        }
+
+        /**
+         * Counts one thing in the directory as finished, queueing the removal of the directory after the last one.
+         */
+        void done(final RemovalNode dir) {
+            if (dir.pending.decrementAndGet() > 0) {
+                return;
+            }
+            queue.submit(() -> {
+                if (run("RMD", dir.path)) {
+                    removedDirs.incrementAndGet();
+                } else {
+                    failures.add("CANNOT remove the directory: " + dir.path);
+                }
+                if (dir.parent != null) {
+                    done(dir.parent);
+                }
+            });
+        }
+
+        /**
+         * Runs DELE or RMD on a free session. When it is repeated after a dropped connection, a refusal because the
+         * lost attempt already removed the path counts as success.
+         */
+        boolean run(String command, String path) {
+            try {
+                return pool.execute((ftpClient, attempt) -> (command.equals("RMD") ? ftpClient.removeDirectory(path)
+                        : ftpClient.deleteFile(path)) || attempt > 0 && !exists(ftpClient, path));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Prints the totals and, on stderr, every failure.
+         */
+        void print() {
+            System.out.println("DELETED " + deletedFiles.get() + " file(s) and REMOVED " + removedDirs.get()
+                    + " directory(ies), " + failures.size() + " failed");
+            for (String failure : failures) {
+                System.err.println(failure);
+            }
+        }
+    }
+
+    /**
+     * Removes a non-empty directory by delete all its sub files and
+     * sub directories recursively. And finally remove the directory.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool whose settings the main session is reconnected with if its connection drops.
+     * @param parentDir
+     *          Path of the parent directory.
+     * @param currentDir
+     *          Path of the current directory.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     * @author www.codejava.net
+     */
+    private static void removeDirectory(FTPClient ftpClient, SessionPool pool, String parentDir, String currentDir)
+            throws IOException {
+        final String dirToList = currentDir.equals("") ? parentDir : parentDir + "/" + currentDir;
+
+        RemoteFileHandler handler = aFile -> {
+            String currentFileName = aFile.getName();
+            if (currentFileName.equals(".") || currentFileName.equals("..")) {
+                // skip parent directory and the directory itself
+                return;
+            }
+            String filePath = currentDir.equals("") ? parentDir + "/" + currentFileName
+                    : parentDir + "/" + currentDir + "/" + currentFileName;
+
+            if (aFile.isDirectory()) {
+                // remove the sub directory
+                removeDirectory(ftpClient, pool, dirToList, currentFileName);
+            } else {
+                // delete the file, which a repeat after a dropped connection may find already gone
+                boolean deleted = onMain(ftpClient, pool, (session, attempt) -> session.deleteFile(filePath)
+                        || attempt > 0 && !exists(session, filePath));
+                if (deleted) {
+                    System.out.println("DELETED the file: " + filePath);
+                } else {
+                    System.err.println("CANNOT delete the file: " + filePath);
+                }
+            }
+        };
+        // a listing is read completely before its entries are handled, so repeating it never handles one twice
+        onMain(ftpClient, pool, (session, attempt) -> {
+            pagedListing(session, dirToList, handler);
+            return null;
+        });
+
+        // finally, remove the directory itself
+        boolean removed = onMain(ftpClient, pool, (session, attempt) -> session.removeDirectory(dirToList)
+                || attempt > 0 && !exists(session, dirToList));
+        listingCache.invalidate(absolutePath(ftpClient, dirToList));
+        if (removed) {
+            System.out.println("REMOVED the directory: " + dirToList);
+        } else {
+            System.err.println("CANNOT remove the directory: " + dirToList);
+        }
+    }
+
+    /**
+     * Upload a whole directory (including its nested sub directories and files)
+     * to a FTP server.
+     *
+     * @param ftpClient
+     *            an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *            Pool whose settings the main session is reconnected with if its connection drops.
+     * @param remoteDirPath
+     *            Path of the destination directory on the server.
+     * @param localParentDir
+     *            Path of the local directory being uploaded.
+     * @param remoteParentDir
+     *            Path of the parent directory of the current directory on the
+     *            server (used by recursive calls).
+     * @throws IOException
+     *             if any network or IO error occurred.
+     * @author www.codejava.net
+     */
+    private static void uploadDirectory(FTPClient ftpClient, SessionPool pool, String remoteDirPath,
+            String localParentDir, String remoteParentDir) throws IOException {
+
+        System.out.println("LISTING directory: " + localParentDir);
+
+        File localDir = new File(localParentDir);
+        File[] subFiles = localDir.listFiles();
+        if (subFiles != null && subFiles.length > 0) {
+            for (File item : subFiles) {
+                String remoteFilePath = remoteParentDir.equals("") ? remoteDirPath + "/" + item.getName()
+                        : remoteDirPath + "/" + remoteParentDir + "/" + item.getName();
+
+                if (item.isFile()) {
+                    // upload the file
+                    String localFilePath = item.getAbsolutePath();
+                    long size = item.length(), time = item.lastModified();
+                    if (alreadyTransferred(localFilePath, size, time)) {
+                        continue;
+                    }
+                    System.out.println("About to upload the file: " + localFilePath);
+                    boolean uploaded = onMain(ftpClient, pool, (session, attempt) -> uploadSingleFile(session,
+                            remoteFilePath, localFilePath));
+                    recordTransfer(localFilePath, uploaded, size, time);
+                    if (uploaded) {
+                        System.out.println("UPLOADED a file to: " + remoteFilePath);
+                    } else {
+                        System.err.println("COULD NOT upload the file: " + localFilePath);
+                    }
+                } else {
+                    // create directory on the server, which a repeat after a dropped connection may find made
+                    boolean created = onMain(ftpClient, pool, (session, attempt) -> session.makeDirectory(
+                            remoteFilePath) || attempt > 0 && exists(session, remoteFilePath));
+                    if (created) {
+                        System.out.println("CREATED the directory: " + remoteFilePath);
+                    } else {
+                        System.err.println("COULD NOT create the directory: " + remoteFilePath);
+                    }
+
+                    // upload the sub directory
+                    String parent = remoteParentDir + "/" + item.getName();
+                    if (remoteParentDir.equals("")) {
+                        parent = item.getName();
+                    }
+
+                    localParentDir = item.getAbsolutePath();
+                    uploadDirectory(ftpClient, pool, remoteDirPath, localParentDir, parent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a local directory recursively, on the main session or, when more than one session is configured, spread
+     * over the sessions of the pool.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param pool
+     *          Pool providing the additional sessions.
+     * @param remoteDirPath
+     *          Path of the destination directory on the server.
+     * @param localDirPath
+     *          Path of the local directory being uploaded.
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    static void uploadDirectory(FTPClient ftpClient, SessionPool pool, String remoteDirPath,
+            String localDirPath) throws IOException {
+        if (resume) {
+            journal = new TransferJournal(pool.getIdentity() + " put " + new File(localDirPath).getAbsolutePath() + " "
+                    + absolutePath(ftpClient, remoteDirPath));
+        }
+        boolean finished = false;
+        try {
+            long[] checked = verifier != null ? verifier.totals() : null;
+            long[] deflated = compression != null ? compression.totals() : null;
+            if (sessions <= 1) {
+                uploadDirectory(ftpClient, pool, remoteDirPath, localDirPath, "");
+            } else {
+                WorkQueue queue = new WorkQueue(sessions, transferThreads);
+                TransferSummary summary = new TransferSummary("Uploaded");
+                submitDirectoryUpload(pool, queue, summary, new File(localDirPath),
+                        absolutePath(ftpClient, remoteDirPath));
+                queue.await();
+                summary.print();
+            }
+            if (checked != null) {
+                verifier.printSummary(checked);
+            }
+            if (deflated != null) {
+                compression.printSummary(deflated);
+            }
+            finished = true;
+        } finally {
+            closeJournal(finished);
+        }
+    }
+
+    /**
+     * Queues the upload of one local directory whose remote counterpart already exists. Its files are queued as
+     * separate uploads, and each sub directory is created on the server before its own contents are queued, so a
+     * file is never stored into a directory that has not been made yet.
+     * 
+     * @param pool
+     *          Pool providing the sessions.
+     * @param queue
+     *          Queue the directory creations and uploads are run on.
+     * @param summary
+     *          Totals the uploads are counted in.
+     * @param localDir
+     *          The local directory being uploaded.
+     * @param remoteDir
+     *          Absolute path of the matching directory on the server.
+     */
+    private static void submitDirectoryUpload(final SessionPool pool, final WorkQueue queue,
+            final TransferSummary summary, final File localDir, final String remoteDir) {
+        System.out.println("LISTING directory: " + localDir.getPath());
+
+        File[] subFiles = localDir.listFiles();
+        if (subFiles == null) {
+            return;
+        }
+
+        for (final File item : subFiles) {
+            final String remoteFilePath = remoteDir + "/" + item.getName();
+
+            if (item.isFile()) {
+                if (!alreadyTransferred(item.getAbsolutePath(), item.length(), item.lastModified())) {
+                    submitFileUpload(pool, queue, summary, item, remoteFilePath);
                 }
+            } else {
+                queue.submit(() -> {
+                    boolean created;
+                    try {
+                        created = pool.execute((ftpClient, attempt) -> ftpClient.makeDirectory(remoteFilePath)
+                                || attempt > 0 && exists(ftpClient, remoteFilePath));
+                    } catch (IOException e) {
+                        created = false;
+                    }
 
-                if (aFile.isDirectory()) {
-                    // create the directory in saveDir
-                    File newDir = new File(newDirPath);
-                    boolean created = newDir.mkdirs();
                     if (created) {
-                        System.out.println("CREATED the directory: " + newDirPath);
+                        System.out.println("CREATED the directory: " + remoteFilePath);
                     } else {
-                        System.err.println("COULD NOT create the directory: " + newDirPath);
+                        System.err.println("COULD NOT create the directory: " + remoteFilePath);
                     }
 
-                    // download the sub directory
-                    downloadDirectory(ftpClient, dirToList, currentFileName, saveDir);
-                } else {
-                    // download the file
-                    boolean success = downloadSingleFile(ftpClient, filePath, newDirPath);
-                    if (success) {
-                        System.out.println("DOWNLOADED the file: " + filePath);
+                    // the directory may already exist, so its contents are attempted either way
+                    submitDirectoryUpload(pool, queue, summary, item, remoteFilePath);
+                });
+            }
+        }
+    }
+
+    /**
+     * Queues the upload of a single file on whichever session of the pool is free.
+     * 
+     * @param pool
+     *          Pool providing the sessions.
+     * @param queue
+     *          Queue the upload is run on.
+     * @param summary
+     *          Totals the upload is counted in.
+     * @param localFile
+     *          The file on the local computer.
+     * @param remoteFilePath
+     *          Absolute path of the file on the server.
+     */
+    private static void submitFileUpload(final SessionPool pool, final WorkQueue queue, final TransferSummary summary,
+            final File localFile, final String remoteFilePath) {
+        queue.submit(() -> {
+            String localFilePath = localFile.getAbsolutePath();
+            long size = localFile.length(), time = localFile.lastModified();
+            boolean uploaded;
+            try {
+                uploaded = pool.execute((ftpClient, attempt) -> uploadSingleFile(ftpClient, remoteFilePath,
+                        localFilePath));
+            } catch (IOException e) {
+                uploaded = false;
+            }
+
+            recordTransfer(localFilePath, uploaded, size, time);
+            if (uploaded) {
+                summary.succeeded(localFile.length());
+                System.out.println("UPLOADED a file to: " + remoteFilePath);
+            } else {
+                summary.failed();
+                System.err.println("COULD NOT upload the file: " + localFilePath);
+            }
+        }, scheduledSize(localFile.length()));
+    }
+
+    /**
+     * Upload a single file to the FTP server.
+     *
+     * @param ftpClient
+     *            an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param localFilePath
+     *            Path of the file on local computer
+     * @param remoteFilePath
+     *            Path of the file on remote the server
+     * @return true if the file was uploaded successfully, false otherwise
+     * @throws IOException
+     *             if any network or IO error occurred.
+     * @author Luis Guillermo Pedroza-Soto
+     */
+    static boolean uploadSingleFile(FTPClient ftpClient, String remoteFilePath, String localFilePath)
+            throws IOException {
+        File localFile = new File(localFilePath);
+
+        // When resuming, append whatever the server is missing to its partial copy
+        long remoteSize = resume ? remoteSize(ftpClient, remoteFilePath) : -1;
+        if (remoteSize >= 0) {
+            // A remote copy last written before the local file changed holds an older version, so it is replaced
+            long remoteTime = remoteTime(ftpClient, remoteFilePath);
+            if (remoteTime >= 0 && remoteTime / 1000 < localFile.lastModified() / 1000) {
+                remoteSize = -1;
+            }
+        }
+        if (remoteSize == localFile.length()) {
+            return true;
+        }
+
+        boolean append = remoteSize > 0 && remoteSize < localFile.length();
+        if (append) {
+            metrics.retried();
+        }
+        StreamingDigest digest = verifier != null ? verifier.newDigest() : null;
+        try {
+            // The digest covers the whole file, so the part the server already has is hashed first
+            if (digest != null && append) {
+                digestFile(digest, localFile, remoteSize);
+            }
+
+            boolean success;
+            if (compression != null && compression.select(ftpClient, localFile.getName(), localFile)) {
+                success = uploadDeflated(ftpClient, remoteFilePath, localFile, append ? remoteSize : 0, digest);
+            } else if (nio && ftpClient instanceof StreamingFTPClient) {
+                success = uploadChannel(ftpClient, remoteFilePath, localFile, append ? remoteSize : 0, digest);
+            } else {
+                FileInputStream fileStream = new FileInputStream(localFile);
+                InputStream inputStream = digest != null ? digesting(fileStream, digest) : fileStream;
+                try {
+                    if (append) {
+                        fileStream.getChannel().position(remoteSize);
+                        success = ftpClient.appendFile(remoteFilePath, inputStream);
                     } else {
-                        System.err.println("COULD NOT download the file: " + filePath);
+                        success = ftpClient.storeFile(remoteFilePath, inputStream);
                     }
+                } finally {
+                    inputStream.close();
                 }
             }
+            return success && (digest == null || verifier.check(ftpClient, remoteFilePath, digest.finish(), false));
+        } finally {
+            if (digest != null) {
+                digest.close();
+            }
         }
     }
 
     /**
-     * Download a single file from the FTP server
-     * @param ftpClient 
-     *          an instance of org.apache.commons.net.ftp.FTPClient class.
-     * @param remoteFilePath 
-     *          path of the file on the server
-     * @param savePath 
-     *          path of directory where the file will be stored
-     * @return  true if the file was downloaded successfully, false otherwise
-     * @throws IOException 
-     *          if any network or IO error occurred.
-     * @author www.codejava.net
+     * Writes a remote file, or a remote directory as a tar archive, to standard output, so the client can feed a
+     * pipeline (gzip, tar, a parser) without staging the data on disk. Data goes from the data connection's
+     * channel through a pooled direct buffer straight to the channel of standard output. From then on
+     * everything else the client prints goes to stderr.
+     * 
+     * @param ftpClient
+     *          The main session, an instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remotePath
+     *          Path of the file or directory on the server.
+     * @throws IOException
+     *          if any network or IO error occurred, or standard output was closed.
      */
-    private static boolean downloadSingleFile(FTPClient ftpClient, String remoteFilePath, String savePath)
-            throws IOException {
-        File downloadFile = new File(savePath);
+    private static void streamDownload(FTPClient ftpClient, String remotePath) throws IOException {
+        System.out.flush();
+        System.setOut(System.err);
 
-        File parentDir = downloadFile.getParentFile();
-        if (!parentDir.exists()) {
-            parentDir.mkdir();
+        String absolute = absolutePath(ftpClient, remotePath);
+        FTPFile probe = ftpClient.hasFeature("MLST") ? ftpClient.mlistFile(absolute) : null;
+        FTPFile[] files = probe != null ? new FTPFile[] { probe } : listFiles(ftpClient, absolute);
+        if (files.length == 0) {
+            System.err.println("Could not locate specified directory or file.");
+            return;
         }
 
-        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(downloadFile));
-        try {
-            return ftpClient.retrieveFile(remoteFilePath, outputStream);
-        } finally {
-            if (outputStream != null) {
-                outputStream.close();
+        if (files.length == 1 && files[0].isFile()) {
+            StreamingDigest digest = verifier != null ? verifier.newDigest() : null;
+            try {
+                boolean success = retrieveTo(ftpClient, absolute, standardOutput(), digest)
+                        && (digest == null || verifier.check(ftpClient, absolute, digest.finish(), true));
+                if (!success) {
+                    System.err.println("File was not streamed.");
+                }
+            } finally {
+                if (digest != null) {
+                    digest.close();
+                }
+            }
+        } else {
+            String name = absolute.substring(absolute.lastIndexOf('/') + 1);
+            if (name.isEmpty()) {
+                name = ".";
             }
+            TransferSummary summary = new TransferSummary("Streamed");
+            TarWriter tar = new TarWriter(standardOutput());
+            tar.putDirectory(name, probe != null ? timeOf(probe) : -1);
+            tarDirectory(ftpClient, absolute, name, tar, summary);
+            tar.close();
+            summary.print();
         }
     }
 
     /**
-     * List the contents of the current working directory on the FTP server.
+     * Adds the contents of a remote directory to a tar archive, sub directories recursively, retrieving each file
+     * on the same session once the listing has been received.
      * 
      * @param ftpClient
      *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remoteDir
+     *          Absolute path of the directory on the server.
+     * @param name
+     *          Path of the directory inside the archive.
+     * @param tar
+     *          The archive.
+     * @param summary
+     *          Totals the files are counted in.
      * @throws IOException
      *          if any network or IO error occurred.
-     * @author Luis Guillermo Pedroza-Soto
      */
-    private static void listDirectory(FTPClient ftpClient) throws IOException {
-        for (String s : ftpClient.listNames()) {
-            System.out.println(s);
-        }
+    private static void tarDirectory(final FTPClient ftpClient, final String remoteDir, final String name,
+            final TarWriter tar, final TransferSummary summary) throws IOException {
+        pagedListing(ftpClient, remoteDir, aFile -> {
+            String currentFileName = aFile.getName();
+            if (currentFileName.equals(".") || currentFileName.equals("..")) {
+                return;
+            }
+            String filePath = remoteDir + "/" + currentFileName;
+            String entryName = name + "/" + currentFileName;
+            if (aFile.isDirectory()) {
+                tar.putDirectory(entryName, timeOf(aFile));
+                tarDirectory(ftpClient, filePath, entryName, tar, summary);
+            } else if (aFile.isFile()) {
+                tar.putFile(entryName, aFile.getSize(), timeOf(aFile));
+                boolean success = retrieveTo(ftpClient, filePath, tar, null);
+                long missing = tar.closeFile();
+                if (success && missing == 0) {
+                    summary.succeeded(aFile.getSize());
+                } else {
+                    summary.failed();
+                    System.err.println("COULD NOT stream the file: " + filePath
+                            + (missing > 0 ? " (" + missing + " byte(s) zero-filled)" : ""));
+                }
+            }
+        });
     }
 
     /**
-     * Removes a non-empty directory by delete all its sub files and
-     * sub directories recursively. And finally remove the directory.
+     * Retrieves a remote file into a channel, through a pooled direct buffer.
      * 
      * @param ftpClient
      *          An instance of org.apache.commons.net.ftp.FTPClient class.
-     * @param parentDir
-     *          Path of the parent directory.
-     * @param currentDir
-     *          Path of the current directory.
+     * @param remoteFilePath
+     *          Path of the file on the server.
+     * @param out
+     *          Where the data is written.
+     * @param digest
+     *          Digest the received bytes are added to, or null.
+     * @return  true if the file was retrieved successfully, false otherwise
      * @throws IOException
      *          if any network or IO error occurred.
-     * @author www.codejava.net
      */
-    private static void removeDirectory(FTPClient ftpClient, String parentDir, String currentDir) throws IOException {
-        String dirToList = parentDir;
-        if (!currentDir.equals("")) {
-            dirToList += "/" + currentDir;
+    private static boolean retrieveTo(FTPClient ftpClient, String remoteFilePath, WritableByteChannel out,
+            StreamingDigest digest) throws IOException {
+        Closeable data;
+        ReadableByteChannel in;
+        if (ftpClient instanceof StreamingFTPClient) {
+            Socket socket = openDataConnection(ftpClient, "RETR", remoteFilePath);
+            if (socket == null) {
+                return false;
+            }
+            data = socket;
+            in = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+        } else {
+            InputStream stream = ftpClient.retrieveFileStream(remoteFilePath);
+            if (stream == null) {
+                return false;
+            }
+            data = stream;
+            in = Channels.newChannel(stream);
         }
-
-        FTPFile[] subFiles = ftpClient.listFiles(dirToList);
-
-        if (subFiles != null && subFiles.length > 0) {
-            for (FTPFile aFile : subFiles) {
-                String currentFileName = aFile.getName();
-                if (currentFileName.equals(".") || currentFileName.equals("..")) {
-                    // skip parent directory and the directory itself
-                    continue;
+        ByteBuffer buffer = buffers.takeDirect(bufferSize);
+        try {
+            CopyStreamListener listener = ftpClient.getCopyStreamListener();
+            long received = 0;
+            int n;
+            while ((n = read(in, buffer)) >= 0) {
+                if (digest != null) {
+                    digest.update(buffer);
+                    buffer.rewind();
                 }
-                String filePath = parentDir + "/" + currentDir + "/" + currentFileName;
-                if (currentDir.equals("")) {
-                    filePath = parentDir + "/" + currentFileName;
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
                 }
+                received += n;
+                if (listener != null) {
+                    listener.bytesTransferred(received, n, -1);
+                }
+            }
+        } finally {
+            buffers.giveDirect(buffer);
+            data.close();
+        }
+        return ftpClient.completePendingCommand();
+    }
 
-                if (aFile.isDirectory()) {
-                    // remove the sub directory
-                    removeDirectory(ftpClient, dirToList, currentFileName);
-                } else {
-                    // delete the file
-                    boolean deleted = ftpClient.deleteFile(filePath);
-                    if (deleted) {
-                        System.out.println("DELETED the file: " + filePath);
-                    } else {
-                        System.err.println("CANNOT delete the file: " + filePath);
+    /**
+     * Stores everything read from standard input as a remote file, so the client can end a pipeline. Data goes
+     * from the channel of standard input through a pooled direct buffer to the data connection.
+     * 
+     * @param ftpClient
+     *          An instance of org.apache.commons.net.ftp.FTPClient class.
+     * @param remoteFilePath
+     *          Path of the file on the server.
+     * @return  true if the file was uploaded successfully, false otherwise
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static boolean uploadStdin(FTPClient ftpClient, String remoteFilePath) throws IOException {
+        Closeable data;
+        WritableByteChannel out;
+        if (ftpClient instanceof StreamingFTPClient) {
+            Socket socket = openDataConnection(ftpClient, "STOR", remoteFilePath);
+            if (socket == null) {
+                return false;
+            }
+            data = socket;
+            out = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+        } else {
+            OutputStream stream = ftpClient.storeFileStream(remoteFilePath);
+            if (stream == null) {
+                return false;
+            }
+            data = stream;
+            out = Channels.newChannel(stream);
+        }
+        StreamingDigest digest = verifier != null ? verifier.newDigest() : null;
+        try {
+            ByteBuffer buffer = buffers.takeDirect(bufferSize);
+            try {
+                ReadableByteChannel in = standardInput();
+                CopyStreamListener listener = ftpClient.getCopyStreamListener();
+                long sent = 0;
+                int n;
+                while ((n = read(in, buffer)) >= 0) {
+                    if (digest != null) {
+                        digest.update(buffer);
+                        buffer.rewind();
+                    }
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    sent += n;
+                    if (listener != null) {
+                        listener.bytesTransferred(sent, n, -1);
                     }
                 }
+            } finally {
+                buffers.giveDirect(buffer);
+                data.close();
+            }
+            return ftpClient.completePendingCommand()
+                    && (digest == null || verifier.check(ftpClient, remoteFilePath, digest.finish(), false));
+        } finally {
+            if (digest != null) {
+                digest.close();
             }
+        }
+    }
 
-            // finally, remove the directory itself
-            boolean removed = ftpClient.removeDirectory(dirToList);
-            if (removed) {
-                System.out.println("REMOVED the directory: " + dirToList);
-            } else {
-                System.err.println("CANNOT remove the directory: " + dirToList);
+    /**
+     * Fills a buffer from a channel, reading until it is full or the channel ends, so that small reads from a pipe
+     * are gathered into large writes.
+     * 
+     * @return  The number of bytes read, ready to be drained from the buffer, or -1 if the channel had ended
+     */
+    private static int read(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int n = 0;
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer);
+            if (read < 0) {
+                if (n == 0) {
+                    return -1;
+                }
+                break;
             }
+            n += read;
         }
+        buffer.flip();
+        return n;
     }
 
     /**
-     * Upload a whole directory (including its nested sub directories and files)
-     * to a FTP server.
-     *
+     * @return  Standard output of the process as a channel, which is never closed
+     */
+    private static synchronized WritableByteChannel standardOutput() {
+        if (standardOutput == null) {
+            standardOutput = new FileOutputStream(FileDescriptor.out).getChannel();
+        }
+        return standardOutput;
+    }
+
+    /**
+     * @return  Standard input of the process as a channel, which is never closed
+     */
+    private static synchronized ReadableByteChannel standardInput() {
+        if (standardInput == null) {
+            standardInput = new FileInputStream(FileDescriptor.in).getChannel();
+        }
+        return standardInput;
+    }
+
+    /**
+     * Opens the data connection of a transfer command with data socket buffers of the configured size.
+     * 
      * @param ftpClient
-     *            an instance of org.apache.commons.net.ftp.FTPClient class.
-     * @param remoteDirPath
-     *            Path of the destination directory on the server.
-     * @param localParentDir
-     *            Path of the local directory being uploaded.
-     * @param remoteParentDir
-     *            Path of the parent directory of the current directory on the
-     *            server (used by recursive calls).
+     *          A session created as a StreamingFTPClient.
+     * @param command
+     *          RETR, STOR or APPE.
+     * @param remoteFilePath
+     *          Path of the file on the server.
+     * @return  The data connection, or null if the server refused the command
      * @throws IOException
-     *             if any network or IO error occurred.
-     * @author www.codejava.net
+     *          if any network or IO error occurred.
      */
-    private static void uploadDirectory(FTPClient ftpClient, String remoteDirPath, String localParentDir,
-            String remoteParentDir) throws IOException {
+    private static Socket openDataConnection(FTPClient ftpClient, String command, String remoteFilePath)
+            throws IOException {
+        ftpClient.setReceieveDataSocketBufferSize(bufferSize);
+        ftpClient.setSendDataSocketBufferSize(bufferSize);
+        return ((StreamingFTPClient) ftpClient).openDataConnection(command, remoteFilePath);
+    }
 
-        System.out.println("LISTING directory: " + localParentDir);
+    /**
+     * Download a single file by reading the data socket's channel into a direct buffer and writing that buffer to
+     * the file's channel, so the data never passes through a heap array.
+     * 
+     * @param ftpClient
+     *          A session created as a StreamingFTPClient, with any restart offset already set.
+     * @param remoteFilePath
+     *          Path of the file on the server.
+     * @param downloadFile
+     *          The local file.
+     * @param offset
+     *          Position to write from, the length of the partial copy being continued or 0.
+     * @param digest
+     *          Digest the received bytes are added to, or null.
+     * @return  true if the file was downloaded successfully, false otherwise
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static boolean downloadChannel(FTPClient ftpClient, String remoteFilePath, File downloadFile,
+            long offset, StreamingDigest digest) throws IOException {
+        Socket socket = openDataConnection(ftpClient, "RETR", remoteFilePath);
+        if (socket == null) {
+            return false;
+        }
+        try {
+            FileChannel channel = offset > 0
+                    ? FileChannel.open(downloadFile.toPath(), StandardOpenOption.WRITE)
+                    : FileChannel.open(downloadFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                receive(ftpClient, socket, channel, offset, Long.MAX_VALUE, digest);
+            } finally {
+                channel.close();
+            }
+        } finally {
+            socket.close();
+        }
+        return ftpClient.completePendingCommand();
+    }
 
-        File localDir = new File(localParentDir);
-        File[] subFiles = localDir.listFiles();
-        if (subFiles != null && subFiles.length > 0) {
-            for (File item : subFiles) {
-                String remoteFilePath = remoteDirPath + "/" + remoteParentDir + "/" + item.getName();
-                if (remoteParentDir.equals("")) {
-                    remoteFilePath = remoteDirPath + "/" + item.getName();
+    /**
+     * Copies data from a data connection into a file at the given position, through a pooled direct buffer.
+     * 
+     * @param ftpClient
+     *          The session the data connection belongs to, whose progress listener is kept informed.
+     * @param socket
+     *          The data connection.
+     * @param channel
+     *          Channel of the local file.
+     * @param position
+     *          Position in the file of the first byte received.
+     * @param limit
+     *          Maximum number of bytes to copy.
+     * @param digest
+     *          Digest the received bytes are added to, or null.
+     * @return  The number of bytes copied
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static long receive(FTPClient ftpClient, Socket socket, FileChannel channel, long position, long limit,
+            StreamingDigest digest) throws IOException {
+        ReadableByteChannel in = socket.getChannel() != null ? socket.getChannel()
+                : Channels.newChannel(socket.getInputStream());
+        CopyStreamListener listener = ftpClient.getCopyStreamListener();
+        ByteBuffer buffer = buffers.takeDirect(bufferSize);
+        try {
+            long received = 0;
+            while (received < limit) {
+                buffer.clear();
+                if (limit - received < buffer.capacity()) {
+                    buffer.limit((int) (limit - received));
+                }
+                int n = in.read(buffer);
+                if (n < 0) {
+                    break;
+                }
+                buffer.flip();
+                if (digest != null) {
+                    digest.update(buffer);
+                    buffer.rewind();
+                }
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, position + received + buffer.position());
                 }
+                received += n;
+                if (listener != null) {
+                    listener.bytesTransferred(received, n, -1);
+                }
+            }
+            return received;
+        } finally {
+            buffers.giveDirect(buffer);
+        }
+    }
 
-                if (item.isFile()) {
-                    // upload the file
-                    String localFilePath = item.getAbsolutePath();
-                    System.out.println("About to upload the file: " + localFilePath);
-                    boolean uploaded = uploadSingleFile(ftpClient, remoteFilePath, localFilePath);
-                    if (uploaded) {
-                        System.out.println("UPLOADED a file to: " + remoteFilePath);
+    /**
+     * Upload a single file with FileChannel.transferTo, which lets the operating system send the file straight from
+     * the page cache to the data socket.
+     * 
+     * @param ftpClient
+     *          A session created as a StreamingFTPClient.
+     * @param remoteFilePath
+     *          Path of the file on the server.
+     * @param localFile
+     *          The local file.
+     * @param offset
+     *          Number of bytes the server already has, which are appended to with APPE, or 0 to send it all.
+     * @param digest
+     *          Digest the sent bytes are added to, or null. The bytes then have to pass through a pooled direct
+     *          buffer to be hashed, instead of going straight from the page cache to the socket.
+     * @return  true if the file was uploaded successfully, false otherwise
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    private static boolean uploadChannel(FTPClient ftpClient, String remoteFilePath, File localFile, long offset,
+            StreamingDigest digest) throws IOException {
+        Socket socket = openDataConnection(ftpClient, offset > 0 ? "APPE" : "STOR", remoteFilePath);
+        if (socket == null) {
+            return false;
+        }
+        ByteBuffer buffer = digest != null ? buffers.takeDirect(bufferSize) : null;
+        try {
+            WritableByteChannel out = socket.getChannel() != null ? socket.getChannel()
+                    : Channels.newChannel(socket.getOutputStream());
+            CopyStreamListener listener = ftpClient.getCopyStreamListener();
+            FileChannel channel = FileChannel.open(localFile.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                long position = offset;
+                while (position < size) {
+                    long n;
+                    if (buffer == null) {
+                        n = channel.transferTo(position, Math.min(size - position, bufferSize), out);
                     } else {
-                        System.err.println("COULD NOT upload the file: " + localFilePath);
+                        buffer.clear();
+                        n = channel.read(buffer, position);
+                        if (n < 0) {
+                            break;
+                        }
+                        buffer.flip();
+                        digest.update(buffer);
+                        buffer.rewind();
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer);
+                        }
                     }
-                } else {
-                    // create directory on the server
-                    boolean created = ftpClient.makeDirectory(remoteFilePath);
-                    if (created) {
-                        System.out.println("CREATED the directory: " + remoteFilePath);
-                    } else {
-                        System.err.println("COULD NOT create the directory: " + remoteFilePath);
+                    position += n;
+                    if (listener != null) {
+                        listener.bytesTransferred(position - offset, (int) n, size - offset);
                     }
+                }
+            } finally {
+                channel.close();
+            }
+        } finally {
+            if (buffer != null) {
+                buffers.giveDirect(buffer);
+            }
+            socket.close();
+        }
+        return ftpClient.completePendingCommand();
+    }
 
-                    // upload the sub directory
-                    String parent = remoteParentDir + "/" + item.getName();
-                    if (remoteParentDir.equals("")) {
-                        parent = item.getName();
+    /**
+     * Download a single file in MODE Z, inflating the zlib stream the server sends while writing the file.
+     * 
+     * @param ftpClient
+     *          A session created as a StreamingFTPClient and just switched to MODE Z, with any restart offset
+     *          already set.
+     * @param remoteFilePath
+     *          Path of the file on the server.
+     * @param downloadFile
+     *          The local file.
+     * @param offset
+     *          Length of the partial copy being continued, or 0.
+     * @param digest
+     *          Digest the inflated bytes are added to, or null.
+     * @return  true if the file was downloaded successfully, false otherwise
+     * @throws IOException
+     *          if any network or IO error occurred, or the compressed stream was corrupt.
+     */
+    private static boolean downloadDeflated(FTPClient ftpClient, String remoteFilePath, File downloadFile,
+            long offset, StreamingDigest digest) throws IOException {
+        Socket socket = openDataConnection(ftpClient, "RETR", remoteFilePath);
+        if (socket == null) {
+            return false;
+        }
+        long received = 0, wire;
+        Inflater inflater = new Inflater();
+        byte[] buffer = buffers.takeHeap(bufferSize);
+        try {
+            InputStream inputStream = socket.getInputStream();
+            OutputStream outputStream = new FileOutputStream(downloadFile, offset > 0);
+            if (digest != null) {
+                outputStream = digesting(outputStream, digest);
+            }
+            try {
+                CopyStreamListener listener = ftpClient.getCopyStreamListener();
+                // compressed bytes are read into the first half of the buffer and inflated into the second
+                int half = buffer.length / 2;
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        int n = inputStream.read(buffer, 0, half);
+                        if (n < 0) {
+                            throw new EOFException("The compressed stream of " + remoteFilePath + " ended early");
+                        }
+                        inflater.setInput(buffer, 0, n);
+                    }
+                    int n;
+                    try {
+                        n = inflater.inflate(buffer, half, buffer.length - half);
+                    } catch (DataFormatException e) {
+                        throw new ZipException(e.getMessage());
+                    }
+                    if (n == 0 && inflater.needsDictionary()) {
+                        throw new ZipException("The compressed stream of " + remoteFilePath + " needs a dictionary");
+                    }
+                    if (n > 0) {
+                        outputStream.write(buffer, half, n);
+                        received += n;
+                        if (listener != null) {
+                            listener.bytesTransferred(received, n, -1);
+                        }
                     }
-
-                    localParentDir = item.getAbsolutePath();
-                    uploadDirectory(ftpClient, remoteDirPath, localParentDir, parent);
                 }
+                wire = inflater.getBytesRead();
+            } finally {
+                outputStream.close();
             }
+        } finally {
+            inflater.end();
+            buffers.giveHeap(buffer);
+            socket.close();
+        }
+        if (!ftpClient.completePendingCommand()) {
+            return false;
         }
+        compression.record(received, wire);
+        return true;
     }
 
     /**
-     * Upload a single file to the FTP server.
-     *
+     * Upload a single file in MODE Z, deflating it on its way to the data connection.
+     * 
      * @param ftpClient
-     *            an instance of org.apache.commons.net.ftp.FTPClient class.
-     * @param localFilePath
-     *            Path of the file on local computer
+     *          A session created as a StreamingFTPClient and just switched to MODE Z.
      * @param remoteFilePath
-     *            Path of the file on remote the server
-     * @return true if the file was uploaded successfully, false otherwise
+     *          Path of the file on the server.
+     * @param localFile
+     *          The local file.
+     * @param offset
+     *          Number of bytes the server already has, which are appended to with APPE, or 0 to send it all.
+     * @param digest
+     *          Digest the sent bytes are added to, or null.
+     * @return  true if the file was uploaded successfully, false otherwise
      * @throws IOException
-     *             if any network or IO error occurred.
-     * @author Luis Guillermo Pedroza-Soto
+     *          if any network or IO error occurred.
      */
-    private static boolean uploadSingleFile(FTPClient ftpClient, String remoteFilePath, String localFilePath)
-            throws IOException {
-        File localFile = new File(localFilePath);
-        InputStream inputStream = new FileInputStream(localFile);
-
+    private static boolean uploadDeflated(FTPClient ftpClient, String remoteFilePath, File localFile, long offset,
+            StreamingDigest digest) throws IOException {
+        Socket socket = openDataConnection(ftpClient, offset > 0 ? "APPE" : "STOR", remoteFilePath);
+        if (socket == null) {
+            return false;
+        }
+        long sent = 0, wire;
+        Deflater deflater = new Deflater(compression.getLevel());
+        byte[] buffer = buffers.takeHeap(bufferSize);
         try {
-            return ftpClient.storeFile(remoteFilePath, inputStream);
+            OutputStream outputStream = socket.getOutputStream();
+            FileInputStream fileStream = new FileInputStream(localFile);
+            try {
+                fileStream.getChannel().position(offset);
+                CopyStreamListener listener = ftpClient.getCopyStreamListener();
+                long size = localFile.length() - offset;
+                // the file is read into the first half of the buffer and deflated into the second
+                int half = buffer.length / 2;
+                int n;
+                while ((n = fileStream.read(buffer, 0, half)) > 0) {
+                    if (digest != null) {
+                        digest.update(buffer, 0, n);
+                    }
+                    deflater.setInput(buffer, 0, n);
+                    while (!deflater.needsInput()) {
+                        outputStream.write(buffer, half, deflater.deflate(buffer, half, buffer.length - half));
+                    }
+                    sent += n;
+                    if (listener != null) {
+                        listener.bytesTransferred(sent, n, size);
+                    }
+                }
+                deflater.finish();
+                while (!deflater.finished()) {
+                    outputStream.write(buffer, half, deflater.deflate(buffer, half, buffer.length - half));
+                }
+                wire = deflater.getBytesWritten();
+            } finally {
+                fileStream.close();
+            }
+            outputStream.flush();
         } finally {
-            if (inputStream != null) {
-                inputStream.close();
+            deflater.end();
+            buffers.giveHeap(buffer);
+            socket.close();
+        }
+        if (!ftpClient.completePendingCommand()) {
+            return false;
+        }
+        compression.record(sent, wire);
+        return true;
+    }
+
+    /**
+     * Adds the start of a local file to a digest, for transfers that continue a partial copy.
+     * 
+     * @param digest
+     *          The digest of the transfer.
+     * @param file
+     *          The local file.
+     * @param length
+     *          Number of bytes to hash from the start of the file.
+     * @throws IOException
+     *          if the file could not be read.
+     */
+    private static void digestFile(StreamingDigest digest, File file, long length) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        ByteBuffer buffer = buffers.takeDirect(bufferSize);
+        try {
+            long position = 0;
+            while (position < length) {
+                buffer.clear();
+                if (length - position < buffer.capacity()) {
+                    buffer.limit((int) (length - position));
+                }
+                int n = channel.read(buffer, position);
+                if (n < 0) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += n;
             }
+        } finally {
+            buffers.giveDirect(buffer);
+            channel.close();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * @return  A stream that adds everything written through it to the digest
+     */
+    private static OutputStream digesting(OutputStream out, final StreamingDigest digest) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                digest.update(b, off, len);
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+        };
+    }
+
+    /**
+     * @return  A stream that adds everything read through it to the digest
+     */
+    private static InputStream digesting(InputStream in, final StreamingDigest digest) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    digest.update(b, off, n);
+                }
+                return n;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+        };
+    }
+}
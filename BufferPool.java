@@ -0,0 +1,90 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded free-list of transfer buffers shared by every worker of the run. A transfer takes a buffer for the file
+ * it moves and gives it back when done, so buffers are allocated for the transfers actually in flight rather than
+ * for every worker thread, and outlive the job whose workers allocated them. Only a limited number of idle buffers
+ * are kept; one given back beyond that, or of a size no longer configured, is left to the garbage collector.
+ */
+public class BufferPool {
+    private final ConcurrentLinkedQueue<ByteBuffer> direct = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final ConcurrentLinkedQueue<byte[]> heap = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger idleDirect = new AtomicInteger();
+    private final AtomicInteger idleHeap = new AtomicInteger();
+    private volatile int limit;
+
+    /**
+     * @param limit
+     *          Number of idle buffers of each kind kept for reuse, e.g. one per session.
+     */
+    public BufferPool(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @param limit
+     *          Number of idle buffers of each kind kept for reuse from now on.
+     */
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @param size
+     *          Capacity the buffer must have.
+     * @return  An idle direct buffer of that capacity, cleared, or a new one if there is none
+     */
+    public ByteBuffer takeDirect(int size) {
+        ByteBuffer buffer;
+        while ((buffer = direct.poll()) != null) {
+            idleDirect.decrementAndGet();
+            if (buffer.capacity() == size) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * @param buffer
+     *          A buffer from {@link #takeDirect}, which the caller no longer uses.
+     */
+    public void giveDirect(ByteBuffer buffer) {
+        if (idleDirect.incrementAndGet() <= limit) {
+            direct.offer(buffer);
+        } else {
+            idleDirect.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param size
+     *          Length the buffer must have.
+     * @return  An idle heap buffer of that length, or a new one if there is none
+     */
+    public byte[] takeHeap(int size) {
+        byte[] buffer;
+        while ((buffer = heap.poll()) != null) {
+            idleHeap.decrementAndGet();
+            if (buffer.length == size) {
+                return buffer;
+            }
+        }
+        return new byte[size];
+    }
+
+    /**
+     * @param buffer
+     *          A buffer from {@link #takeHeap}, which the caller no longer uses.
+     */
+    public void giveHeap(byte[] buffer) {
+        if (idleHeap.incrementAndGet() <= limit) {
+            heap.offer(buffer);
+        } else {
+            idleHeap.decrementAndGet();
+        }
+    }
+}
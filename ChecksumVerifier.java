@@ -0,0 +1,223 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+/**
+ * Compares the digest computed while a file was transferred with the one the server reports for its copy, using
+ * HASH when the server offers the algorithm and XMD5 or XCRC otherwise. Downloads from a server that cannot hash are
+ * checked against a sidecar manifest in the remote directory instead, in the format of sha256sum and friends
+ * (SHA256SUMS, MD5SUMS, CRC32SUMS or CRC32CSUMS). Files nothing can be compared with are counted as unverified.
+ */
+public class ChecksumVerifier {
+    private static final String NONE = "";
+
+    private final String algorithm;
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong mismatched = new AtomicLong();
+    private final AtomicLong unverified = new AtomicLong();
+
+    /**
+     * Command the server hashes files with, null until the first file is checked.
+     */
+    private volatile String serverCommand;
+    private final Map<FTPClient, Boolean> hashSelected = Collections.synchronizedMap(
+            new WeakHashMap<FTPClient, Boolean>());
+    private final Map<String, Map<String, String>> sidecars = new ConcurrentHashMap<String, Map<String, String>>();
+
+    /**
+     * @param algorithm
+     *          crc32, crc32c, md5 or sha256.
+     * @throws IllegalArgumentException
+     *          if the algorithm is not one of those.
+     */
+    public ChecksumVerifier(String algorithm) {
+        // fails here rather than on the first transfer if the algorithm is unknown
+        new StreamingDigest(algorithm);
+        this.algorithm = algorithm;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return  A digest for the next transfer
+     */
+    public StreamingDigest newDigest() {
+        return new StreamingDigest(algorithm);
+    }
+
+    /**
+     * Checks a transferred file against the server's digest or, for downloads, the sidecar manifest.
+     *
+     * @param ftpClient
+     *          The session the file was transferred on, now idle.
+     * @param remoteFilePath
+     *          Path of the file on the server.
+     * @param localDigest
+     *          Hex digest computed during the transfer.
+     * @param download
+     *          true if the file was downloaded, which allows a sidecar manifest to be used.
+     * @return  false if the digests differ, true if they match or nothing could be compared
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    public boolean check(FTPClient ftpClient, String remoteFilePath, String localDigest, boolean download)
+            throws IOException {
+        String expected = serverDigest(ftpClient, remoteFilePath);
+        if (expected == null && download) {
+            expected = sidecarDigest(ftpClient, remoteFilePath);
+        }
+        if (expected == null) {
+            unverified.incrementAndGet();
+            return true;
+        }
+        if (expected.equalsIgnoreCase(localDigest)) {
+            verified.incrementAndGet();
+            return true;
+        }
+        mismatched.incrementAndGet();
+        System.err.println("CHECKSUM MISMATCH for " + remoteFilePath + ": " + algorithm + " " + localDigest
+                + " locally, " + expected + " on the server");
+        return false;
+    }
+
+    /**
+     * Forgets the hash selected on a session, which a new connection of that session has to be sent again.
+     *
+     * @param ftpClient
+     *          A session that is connecting again.
+     */
+    public void reset(FTPClient ftpClient) {
+        hashSelected.remove(ftpClient);
+    }
+
+    /**
+     * @return  The verified, mismatched and unverified counts so far, to be passed to {@link #printSummary(long[])}
+     */
+    public long[] totals() {
+        return new long[] { verified.get(), mismatched.get(), unverified.get() };
+    }
+
+    /**
+     * Prints how many files were checked since the given totals were taken, on stderr if any of them mismatched.
+     *
+     * @param since
+     *          Totals taken when the job started.
+     */
+    public void printSummary(long[] since) {
+        long[] now = totals();
+        String line = String.format("Verified %d file(s) with %s, %d failed, %d unverified", now[0] - since[0],
+                algorithm, now[1] - since[1], now[2] - since[2]);
+        if (now[1] > since[1]) {
+            System.err.println(line);
+        } else {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * @return  The server's hex digest of the file, or null if it cannot tell
+     */
+    private String serverDigest(FTPClient ftpClient, String remoteFilePath) throws IOException {
+        String command = serverCommand;
+        if (command == null) {
+            command = NONE;
+            String hashName = hashName();
+            String[] hashes = ftpClient.featureValues("HASH");
+            if (hashName != null && hashes != null && hashes.length > 0
+                    && hashes[0].toUpperCase(Locale.ROOT).replace("*", "").matches("(.*;)?" + hashName + "(;.*)?")) {
+                command = "HASH";
+            } else if (algorithm.equals("md5")) {
+                command = "XMD5";
+            } else if (algorithm.equals("crc32")) {
+                command = "XCRC";
+            }
+            serverCommand = command;
+        }
+        if (command.isEmpty()) {
+            return null;
+        }
+
+        if (command.equals("HASH") && hashSelected.put(ftpClient, Boolean.TRUE) == null) {
+            ftpClient.sendCommand("OPTS", "HASH " + hashName());
+        }
+        int reply = ftpClient.sendCommand(command, remoteFilePath);
+        if (reply == FTPReply.UNRECOGNIZED_COMMAND || reply == FTPReply.COMMAND_NOT_IMPLEMENTED) {
+            serverCommand = NONE;
+            return null;
+        }
+        if (!FTPReply.isPositiveCompletion(reply)) {
+            return null;
+        }
+        // the digest is the first word of the reply that is hex of the right length
+        int length = algorithm.startsWith("crc") ? 8 : algorithm.equals("md5") ? 32 : 64;
+        for (String word : ftpClient.getReplyString().substring(4).trim().split("\\s+")) {
+            if (word.length() == length && word.matches("[0-9a-fA-F]+")) {
+                return word.toLowerCase(Locale.ROOT);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return  The digest of the file in its directory's sidecar manifest, or null if there is none
+     */
+    private String sidecarDigest(FTPClient ftpClient, String remoteFilePath) throws IOException {
+        int slash = remoteFilePath.lastIndexOf('/');
+        String dir = slash < 0 ? "" : remoteFilePath.substring(0, slash + 1);
+        String name = remoteFilePath.substring(slash + 1);
+
+        Map<String, String> sums = sidecars.get(dir);
+        if (sums == null) {
+            sums = new HashMap<String, String>();
+            InputStream inputStream = ftpClient.retrieveFileStream(dir + algorithm.toUpperCase(Locale.ROOT) + "SUMS");
+            if (inputStream != null) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        // "<digest>  <name>", or "<digest> *<name>" for files hashed in binary mode
+                        String[] fields = line.trim().split("\\s+\\*?", 2);
+                        if (fields.length == 2) {
+                            sums.put(fields[1], fields[0].toLowerCase(Locale.ROOT));
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+                ftpClient.completePendingCommand();
+            }
+            sidecars.put(dir, sums);
+        }
+        return sums.get(name);
+    }
+
+    /**
+     * @return  The algorithm's name in the HASH command, or null if HASH does not define it
+     */
+    private String hashName() {
+        switch (algorithm) {
+        case "crc32":
+            return "CRC32";
+        case "md5":
+            return "MD5";
+        case "sha256":
+            return "SHA-256";
+        default:
+            return null;
+        }
+    }
+}
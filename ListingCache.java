@@ -0,0 +1,124 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+/**
+ * Remote directory listings of the current run, keyed by absolute remote path. Entries expire after a fixed time
+ * and the least recently used ones are dropped once the cache is full. Commands that change the server invalidate
+ * the listings they affect.
+ */
+public class ListingCache {
+    private static class Entry {
+        final FTPFile[] files;
+        final long expires;
+
+        Entry(FTPFile[] files, long expires) {
+            this.files = files;
+            this.expires = expires;
+        }
+    }
+
+    private long ttlMillis;
+    private int maxEntries;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    /**
+     * @param ttlMillis
+     *          How long a listing stays valid, 0 to disable caching.
+     * @param maxEntries
+     *          Number of listings kept before the least recently used ones are dropped.
+     */
+    public ListingCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    public synchronized void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        if (ttlMillis <= 0) {
+            entries.clear();
+        }
+    }
+
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        Iterator<String> it = entries.keySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * @param path
+     *          Absolute path on the server.
+     * @return  The cached listing, or null if there is none or it has expired
+     */
+    public synchronized FTPFile[] get(String path) {
+        String key = normalize(path);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.files;
+    }
+
+    /**
+     * @param path
+     *          Absolute path on the server.
+     * @param files
+     *          Listing the server returned for the path.
+     */
+    public synchronized void put(String path, FTPFile[] files) {
+        if (ttlMillis > 0) {
+            entries.put(normalize(path), new Entry(files, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    /**
+     * Forgets every listing a change to the given path may have made stale: the path itself, its parent directory
+     * and, if it is a directory, everything below it.
+     *
+     * @param path
+     *          Absolute path on the server of the file or directory that changed.
+     */
+    public synchronized void invalidate(String path) {
+        String key = normalize(path);
+        String below = key.equals("/") ? "/" : key + "/";
+        int slash = key.lastIndexOf('/');
+        String parent = slash <= 0 ? "/" : key.substring(0, slash);
+
+        entries.remove(parent);
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            String cached = it.next();
+            if (cached.equals(key) || cached.startsWith(below)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static String normalize(String path) {
+        String key = path.replaceAll("/+", "/");
+        while (key.length() > 1 && key.endsWith("/")) {
+            key = key.substring(0, key.length() - 1);
+        }
+        if (key.endsWith("/.")) {
+            key = key.length() == 2 ? "/" : key.substring(0, key.length() - 2);
+        }
+        return key;
+    }
+}
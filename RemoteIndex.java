@@ -0,0 +1,289 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The path, size, modification time and type of everything under a remote directory, as found by the last crawl.
+ * Queries such as find and du are answered from it without talking to the server, and the next crawl uses the
+ * recorded directory times to skip the directories that did not change. The index lives in the working directory
+ * under a name derived from the server and the remote directory, one tab separated line per entry, with paths
+ * relative to the indexed directory.
+ */
+public class RemoteIndex {
+    /**
+     * One file or directory of a listing. A time of -1 means the server's time is not known.
+     */
+    public static class Entry {
+        final String name;
+        final boolean directory;
+        final long size;
+        final long time;
+
+        Entry(String name, boolean directory, long size, long time) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Something done with each entry of a part of the index.
+     */
+    public interface Visitor {
+        /**
+         * @param path
+         *          Path of the entry relative to the indexed directory.
+         * @param entry
+         *          The entry.
+         */
+        void visit(String path, Entry entry);
+    }
+
+    private static final Comparator<Entry> BY_NAME = (a, b) -> a.name.compareTo(b.name);
+
+    private final String server;
+    private final String root;
+    private final File file;
+    private final ConcurrentHashMap<String, List<Entry>> listings = new ConcurrentHashMap<String, List<Entry>>();
+    private long rootTime = -1;
+    private long created = System.currentTimeMillis();
+
+    /**
+     * Starts an empty index, to be filled by a crawl.
+     *
+     * @param server
+     *          The server the directory is on, as user@host:port.
+     * @param root
+     *          Absolute path of the indexed directory on the server.
+     */
+    public RemoteIndex(String server, String root) {
+        this.server = server;
+        this.root = root;
+        file = new File(".ftp-index-" + Integer.toHexString((server + " " + root).hashCode()));
+    }
+
+    /**
+     * Loads the index last saved for a remote directory.
+     *
+     * @param server
+     *          The server the directory is on, as user@host:port.
+     * @param root
+     *          Absolute path of the indexed directory on the server.
+     * @return  The index, or null if there is none or it belongs to another server or directory
+     * @throws IOException
+     *          if the index exists but could not be read.
+     */
+    public static RemoteIndex load(String server, String root) throws IOException {
+        RemoteIndex index = new RemoteIndex(server, root);
+        if (!index.file.isFile()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(index.file));
+        try {
+            String[] header = String.valueOf(reader.readLine()).split("\t");
+            if (header.length != 5 || !header[0].equals("#index") || !header[1].equals(server)
+                    || !header[2].equals(root)) {
+                return null;
+            }
+            index.rootTime = Long.parseLong(header[3]);
+            index.created = Long.parseLong(header[4]);
+            index.listings.put("", new ArrayList<Entry>());
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    continue;
+                }
+                String path = fields[3];
+                int slash = path.lastIndexOf('/');
+                String parent = slash < 0 ? "" : path.substring(0, slash);
+                boolean directory = fields[0].equals("d");
+                Entry entry = new Entry(path.substring(slash + 1), directory, Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]));
+                index.listings.computeIfAbsent(parent, k -> new ArrayList<Entry>()).add(entry);
+                if (directory) {
+                    index.listings.computeIfAbsent(path, k -> new ArrayList<Entry>());
+                }
+            }
+        } catch (NumberFormatException e) {
+            // a damaged index only costs a full crawl
+            return null;
+        } finally {
+            reader.close();
+        }
+        return index;
+    }
+
+    /**
+     * Writes the index to disk, replacing the one saved by an earlier crawl of the same directory.
+     *
+     * @throws IOException
+     *          if the index could not be written.
+     */
+    public void save() throws IOException {
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+        try {
+            writer.println("#index\t" + server + "\t" + root + "\t" + rootTime + "\t" + created);
+            walk("", (path, entry) -> writer.println((entry.directory ? "d\t" : "f\t") + entry.size + "\t" + entry.time
+                    + "\t" + path));
+        } finally {
+            writer.close();
+        }
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    /**
+     * @return  Modification time of the indexed directory itself, -1 if not known
+     */
+    public long getRootTime() {
+        return rootTime;
+    }
+
+    public void setRootTime(long rootTime) {
+        this.rootTime = rootTime;
+    }
+
+    /**
+     * @return  When the crawl that built the index started, in milliseconds since the epoch
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Records the listing of one directory. Directories may be recorded from several threads at once.
+     *
+     * @param path
+     *          Path of the directory relative to the indexed one, "" for the indexed directory itself.
+     * @param entries
+     *          Its files and sub directories, without "." and "..".
+     */
+    public void put(String path, List<Entry> entries) {
+        List<Entry> sorted = new ArrayList<Entry>(entries);
+        Collections.sort(sorted, BY_NAME);
+        listings.put(path, sorted);
+    }
+
+    /**
+     * @param path
+     *          Path of a directory relative to the indexed one.
+     * @return  Its files and sub directories sorted by name, or null if it is not an indexed directory
+     */
+    public List<Entry> get(String path) {
+        return listings.get(path);
+    }
+
+    /**
+     * @param path
+     *          Path of a file or directory relative to the indexed one, not "".
+     * @return  Its entry in its directory's listing, or null if it is not indexed
+     */
+    public Entry entry(String path) {
+        int slash = path.lastIndexOf('/');
+        List<Entry> entries = listings.get(slash < 0 ? "" : path.substring(0, slash));
+        if (entries == null) {
+            return null;
+        }
+        String name = path.substring(slash + 1);
+        synchronized (entries) {
+            int i = Collections.binarySearch(entries, new Entry(name, false, 0, 0), BY_NAME);
+            return i < 0 ? null : entries.get(i);
+        }
+    }
+
+    /**
+     * Records a new modification time for an indexed directory, found after its parent's listing was recorded.
+     *
+     * @param path
+     *          Path of the directory relative to the indexed one, "" for the indexed directory itself.
+     * @param time
+     *          Its modification time.
+     */
+    public void setTime(String path, long time) {
+        if (path.isEmpty()) {
+            rootTime = time;
+            return;
+        }
+        int slash = path.lastIndexOf('/');
+        List<Entry> entries = listings.get(slash < 0 ? "" : path.substring(0, slash));
+        if (entries == null) {
+            return;
+        }
+        String name = path.substring(slash + 1);
+        synchronized (entries) {
+            int i = Collections.binarySearch(entries, new Entry(name, false, 0, 0), BY_NAME);
+            if (i >= 0) {
+                Entry old = entries.get(i);
+                entries.set(i, new Entry(name, old.directory, old.size, time));
+            }
+        }
+    }
+
+    /**
+     * Hands every entry under a directory to the visitor, each directory before its contents.
+     *
+     * @param path
+     *          Path of the directory relative to the indexed one.
+     * @param visitor
+     *          What to do with each entry.
+     */
+    public void walk(String path, Visitor visitor) {
+        List<Entry> entries = listings.get(path);
+        if (entries == null) {
+            return;
+        }
+        for (Entry entry : entries) {
+            String child = child(path, entry.name);
+            visitor.visit(child, entry);
+            if (entry.directory) {
+                walk(child, visitor);
+            }
+        }
+    }
+
+    /**
+     * @param path
+     *          Absolute path on the server.
+     * @return  The path relative to the indexed directory, or null if it is outside of it
+     */
+    public String relativePath(String path) {
+        if (path.equals(root)) {
+            return "";
+        }
+        String prefix = root.endsWith("/") ? root : root + "/";
+        return path.startsWith(prefix) ? path.substring(prefix.length()) : null;
+    }
+
+    /**
+     * @param path
+     *          Path relative to the indexed directory.
+     * @return  The absolute path on the server
+     */
+    public String remotePath(String path) {
+        if (path.isEmpty()) {
+            return root;
+        }
+        return root.endsWith("/") ? root + path : root + "/" + path;
+    }
+
+    /**
+     * @return  The relative path of an entry of the directory at the given relative path
+     */
+    public static String child(String path, String name) {
+        return path.isEmpty() ? name : path + "/" + name;
+    }
+}
@@ -0,0 +1,374 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.commons.net.ftp.FTPSClient;
+
+/**
+ * An FTPSClient for explicit TLS (AUTH TLS) that also protects every data connection (PROT P) and resumes the TLS
+ * session of the control connection on it. Without resumption each data connection pays a full handshake, key
+ * exchange and certificate check included, which dominates the cost of small files; servers such as vsftpd with
+ * require_ssl_reuse even refuse data connections that do not resume.
+ *
+ * JSSE offers a cached session to a new connection only if it goes to the same host and port, and a data connection
+ * goes to another port. So the control connection and the data connections, which are connected in the clear, are
+ * wrapped in TLS through a socket that reports a port of this client's own, under which JSSE then caches its
+ * session. A TLS 1.3 session ticket can only be used once, so a key of its own also keeps the sessions of a pool
+ * from taking each other's ticket and falling back to a full handshake. The cache belongs to the SSLContext, which
+ * the sessions of a pool share, and the key to the client, so a session that reconnects resumes where it left off.
+ */
+public class SecureFTPClient extends FTPSClient {
+    /**
+     * Source of the session cache keys, which start above the real ports so they never clash with a connection
+     * that does not go through this class.
+     */
+    private static final AtomicInteger cacheKeys = new AtomicInteger(65536);
+
+    private final int cacheKey = cacheKeys.incrementAndGet();
+    private final SSLContext context;
+    private final TransferMetrics metrics;
+    private volatile boolean sessionReuse = true;
+    private boolean dataProtected;
+
+    /**
+     * @param context
+     *          TLS context of the control and data connections, which may be shared with other sessions, e.g. those
+     *          of a pool.
+     * @param metrics
+     *          Metrics the handshakes are recorded in, or null for none.
+     */
+    public SecureFTPClient(SSLContext context, TransferMetrics metrics) {
+        super(false, context);
+        this.context = context;
+        this.metrics = metrics;
+        setEndpointCheckingEnabled(true);
+    }
+
+    /**
+     * @return  A TLS context that trusts the JVM's default certificate authorities, or the trust store given with
+     *          -Djavax.net.ssl.trustStore
+     * @throws IOException
+     *          if this JVM offers no TLS.
+     */
+    public static SSLContext defaultContext() throws IOException {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS is not available: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param sessionReuse
+     *          false to not offer the control connection's session to data connections, e.g. to measure what
+     *          resumption saves or for servers that mishandle it. A data connection can then still resume the
+     *          session of an earlier one that went to the same port.
+     */
+    public void setSessionReuse(boolean sessionReuse) {
+        this.sessionReuse = sessionReuse;
+    }
+
+    /**
+     * A new connection, e.g. after a reconnect, is in the clear until it is logged in again.
+     */
+    @Override
+    protected void _connectAction_() throws IOException {
+        dataProtected = false;
+        super._connectAction_();
+    }
+
+    @Override
+    protected void sslNegotiation() throws IOException {
+        _socket_ = new ForwardingSocket(_socket_, cacheKey);
+        long startMillis = System.currentTimeMillis(), start = System.nanoTime();
+        super.sslNegotiation();
+        recordHandshake((SSLSocket) _socket_, startMillis, start);
+    }
+
+    /**
+     * Logs in and switches the data connections to TLS with PBSZ 0 and PROT P.
+     */
+    @Override
+    public boolean login(String username, String password) throws IOException {
+        if (!super.login(username, password)) {
+            return false;
+        }
+        execPBSZ(0);
+        execPROT("P");
+        // data sockets are connected in the clear and wrapped in _openDataConnection_, and a reconnect must not
+        // open the control connection with the TLS factories PROT P installed
+        setSocketFactory(null);
+        setServerSocketFactory(null);
+        dataProtected = true;
+        return true;
+    }
+
+    /**
+     * Every data connection, whether opened by commons-net's transfer and listing methods or passive or active,
+     * passes through here and is wrapped in TLS once the server accepted its command.
+     */
+    @Override
+    protected Socket _openDataConnection_(String command, String arg) throws IOException {
+        Socket socket = super._openDataConnection_(command, arg);
+        if (socket == null || !dataProtected || socket instanceof SSLSocket || !(_socket_ instanceof SSLSocket)) {
+            return socket;
+        }
+
+        String host = ((SSLSocket) _socket_).getSession().getPeerHost();
+        boolean reuse = sessionReuse;
+        // the handshake is a few small flights that Nagle's algorithm would hold back for a delayed ack
+        socket.setTcpNoDelay(true);
+        SSLSocket secure = (SSLSocket) context.getSocketFactory().createSocket(
+                reuse ? new ForwardingSocket(socket, cacheKey) : socket, host, cacheKey, true);
+        secure.setUseClientMode(true);
+        if (isEndpointCheckingEnabled()) {
+            // a full handshake on a data connection checks the certificate as thoroughly as on the control one
+            SSLParameters parameters = secure.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            secure.setSSLParameters(parameters);
+        }
+        long startMillis = System.currentTimeMillis(), start = System.nanoTime();
+        try {
+            secure.startHandshake();
+        } catch (IOException e) {
+            secure.close();
+            throw e;
+        }
+        recordHandshake(secure, startMillis, start);
+        String upload = command.toUpperCase(Locale.ROOT);
+        if (upload.equals("STOR") || upload.equals("APPE") || upload.equals("STOU")) {
+            return new UploadSocket(secure);
+        }
+        return secure;
+    }
+
+    private void recordHandshake(SSLSocket socket, long startMillis, long start) {
+        if (metrics != null) {
+            // a resumed session keeps the creation time of the full handshake that made it
+            metrics.handshake(System.nanoTime() - start, socket.getSession().getCreationTime() < startMillis);
+        }
+    }
+
+    /**
+     * The data connection of an upload, which is closed the way TLS expects: the client announces the end of the
+     * data with close_notify and reads until the server has closed its side too. The server may have sent something
+     * the client never asked for, such as a session ticket for the next data connection, and a socket closed with
+     * that unread is reset, which can throw away the end of the upload before the server read it.
+     */
+    private static class UploadSocket extends ForwardingSocket {
+        private boolean closed;
+
+        UploadSocket(SSLSocket socket) {
+            super(socket, socket.getPort());
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            // commons-net closes the stream of an upload before, or instead of, the socket
+            return new FilterOutputStream(super.getOutputStream()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    UploadSocket.this.close();
+                }
+            };
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                socket.shutdownOutput();
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[512];
+                while (in.read(buffer) != -1) {
+                    // nothing but the end of the server's side is expected
+                }
+            } catch (IOException e) {
+                // whether the upload arrived is up to the server's reply, not to how the connection ends
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * A connected socket that reports another remote port, e.g. the one JSSE caches sessions by, and passes
+     * everything else to the real socket.
+     */
+    private static class ForwardingSocket extends Socket {
+        final Socket socket;
+        private final int port;
+
+        ForwardingSocket(Socket socket, int port) {
+            this.socket = socket;
+            this.port = port;
+        }
+
+        @Override
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return socket.getInetAddress();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return socket.getLocalAddress();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return socket.getRemoteSocketAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return socket.getLocalSocketAddress();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return socket.isConnected();
+        }
+
+        @Override
+        public boolean isBound() {
+            return socket.isBound();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return socket.isInputShutdown();
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return socket.isOutputShutdown();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            socket.shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            socket.shutdownOutput();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public synchronized void setSoTimeout(int timeout) throws SocketException {
+            socket.setSoTimeout(timeout);
+        }
+
+        @Override
+        public synchronized int getSoTimeout() throws SocketException {
+            return socket.getSoTimeout();
+        }
+
+        @Override
+        public synchronized void setReceiveBufferSize(int size) throws SocketException {
+            socket.setReceiveBufferSize(size);
+        }
+
+        @Override
+        public synchronized int getReceiveBufferSize() throws SocketException {
+            return socket.getReceiveBufferSize();
+        }
+
+        @Override
+        public synchronized void setSendBufferSize(int size) throws SocketException {
+            socket.setSendBufferSize(size);
+        }
+
+        @Override
+        public synchronized int getSendBufferSize() throws SocketException {
+            return socket.getSendBufferSize();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            socket.setTcpNoDelay(on);
+        }
+
+        @Override
+        public boolean getTcpNoDelay() throws SocketException {
+            return socket.getTcpNoDelay();
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException {
+            socket.setKeepAlive(on);
+        }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException {
+            return socket.getKeepAlive();
+        }
+
+        @Override
+        public void setSoLinger(boolean on, int linger) throws SocketException {
+            socket.setSoLinger(on, linger);
+        }
+
+        @Override
+        public int getSoLinger() throws SocketException {
+            return socket.getSoLinger();
+        }
+
+        @Override
+        public String toString() {
+            return socket.toString();
+        }
+    }
+}
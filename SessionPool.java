@@ -0,0 +1,403 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPConnectionClosedException;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.io.CopyStreamException;
+
+/**
+ * A pool of logged-in FTP sessions used by the parallel transfer modes. Sessions are opened lazily the first time a
+ * worker asks for one, so the pool never holds more connections than there are concurrent workers.
+ * <p>
+ * Sessions that sat idle for a while are checked with NOOP before they are handed out again, and sessions that
+ * cannot be opened, e.g. while the server restarts, are retried with exponential backoff. Work passed to
+ * {@link #execute(Operation)} is run again on a fresh session when the connection drops under it, so it must be
+ * safe to repeat.
+ */
+public class SessionPool implements Closeable {
+    /**
+     * Something done on a borrowed session that can be repeated on a new one after the connection dropped.
+     */
+    public interface Operation<T> {
+        /**
+         * @param ftpClient
+         *          A connected and logged-in session.
+         * @param attempt
+         *          0 on the first run, the number of earlier runs lost to a dropped connection otherwise.
+         * @return  The outcome of the operation
+         * @throws IOException
+         *          if any network or IO error occurred.
+         */
+        T run(FTPClient ftpClient, int attempt) throws IOException;
+    }
+
+    /**
+     * A session waiting in the pool, with the time it was last used.
+     */
+    private static class IdleSession {
+        final FTPClient ftpClient;
+        final long since;
+
+        IdleSession(FTPClient ftpClient) {
+            this.ftpClient = ftpClient;
+            this.since = System.nanoTime();
+        }
+    }
+
+    /**
+     * First and longest wait between two attempts to reach the server.
+     */
+    private static final long BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private final String server;
+    private final int port;
+    private final String user;
+    private final String pass;
+    private final TransferMetrics metrics;
+    private volatile int retries = 3;
+    private volatile long healthCheckMillis = 15000;
+    private volatile SSLContext secure;
+    private volatile boolean sessionReuse = true;
+
+    private final ConcurrentLinkedQueue<IdleSession> idle = new ConcurrentLinkedQueue<IdleSession>();
+
+    /**
+     * @param server
+     *          Host name of the FTP server.
+     * @param port
+     *          Port of the FTP server, 0 or less for the default port.
+     * @param user
+     *          User name to log in with.
+     * @param pass
+     *          Password to log in with.
+     */
+    public SessionPool(String server, int port, String user, String pass) {
+        this(server, port, user, pass, null);
+    }
+
+    /**
+     * @param server
+     *          Host name of the FTP server.
+     * @param port
+     *          Port of the FTP server, 0 or less for the default port.
+     * @param user
+     *          User name to log in with.
+     * @param pass
+     *          Password to log in with.
+     * @param metrics
+     *          Metrics every new session is instrumented for, or null for none.
+     */
+    public SessionPool(String server, int port, String user, String pass, TransferMetrics metrics) {
+        this.server = server;
+        this.port = port;
+        this.user = user;
+        this.pass = pass;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param retries
+     *          Number of times a session is reconnected, and an operation repeated, after the connection dropped.
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return  The user and server the sessions log in to, as user@host:port, which tells what is kept on disk for
+     *          one server apart from what is kept for another
+     */
+    public String getIdentity() {
+        return user + "@" + server.toLowerCase(Locale.ROOT) + ":" + (port > 0 ? port : FTP.DEFAULT_PORT);
+    }
+
+    /**
+     * @param healthCheckMillis
+     *          Idle time after which a session is checked with NOOP before it is handed out, 0 to always check.
+     */
+    public void setHealthCheckMillis(long healthCheckMillis) {
+        this.healthCheckMillis = healthCheckMillis;
+    }
+
+    /**
+     * @param secure
+     *          TLS context of the sessions, which are then opened with explicit TLS and protect their data connections,
+     *          or null for plain FTP. Each session keeps its TLS session in the context's cache, where it is resumed by
+     *          the session's data connections and by its reconnects.
+     */
+    public void setSecure(SSLContext secure) {
+        this.secure = secure;
+    }
+
+    /**
+     * @param sessionReuse
+     *          false to give every TLS data connection a full handshake instead of resuming the control connection's
+     *          session.
+     * @see SecureFTPClient#setSessionReuse(boolean)
+     */
+    public void setSessionReuse(boolean sessionReuse) {
+        this.sessionReuse = sessionReuse;
+    }
+
+    /**
+     * Takes an idle session from the pool, or opens a new one if none is idle. A session that was idle longer than
+     * the health check interval is only handed out if it still answers NOOP.
+     *
+     * @return  A connected and logged-in instance of org.apache.commons.net.ftp.FTPClient class.
+     * @throws IOException
+     *          if the server could not be reached or refused the login.
+     */
+    public FTPClient borrow() throws IOException {
+        return borrow(healthCheckMillis);
+    }
+
+    private FTPClient borrow(long checkAfterMillis) throws IOException {
+        IdleSession session;
+        while ((session = idle.poll()) != null) {
+            if (System.nanoTime() - session.since < checkAfterMillis * 1000000 || answers(session.ftpClient)) {
+                if (session.ftpClient instanceof SecureFTPClient) {
+                    ((SecureFTPClient) session.ftpClient).setSessionReuse(sessionReuse);
+                }
+                return session.ftpClient;
+            }
+            disconnect(session.ftpClient);
+        }
+        return open();
+    }
+
+    /**
+     * Runs an operation on a borrowed session. If the connection drops under it, the session is replaced and the
+     * operation run again, up to the configured number of retries, waiting longer before each attempt. Errors
+     * that are not about the connection, and the last one, are thrown to the caller.
+     *
+     * @param operation
+     *          What to do with the session. It must be safe to repeat after a partial run.
+     * @return  What the operation returned
+     * @throws IOException
+     *          if the operation failed for good.
+     */
+    public <T> T execute(Operation<T> operation) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            // after a drop the other idle sessions may be dead as well, so each is checked before a retry uses it
+            FTPClient ftpClient = borrow(attempt == 0 ? healthCheckMillis : 0);
+            try {
+                T result = operation.run(ftpClient, attempt);
+                release(ftpClient);
+                return result;
+            } catch (IOException e) {
+                invalidate(ftpClient);
+                if (!isTransient(e) || attempt >= retries) {
+                    throw e;
+                }
+                if (metrics != null) {
+                    metrics.reconnected();
+                }
+                backOff(attempt);
+            }
+        }
+    }
+
+    /**
+     * Hands a session back to the pool so another worker can reuse it.
+     *
+     * @param ftpClient
+     *          A session previously obtained from {@link #borrow()}.
+     */
+    public void release(FTPClient ftpClient) {
+        if (ftpClient.isConnected()) {
+            idle.offer(new IdleSession(ftpClient));
+        }
+    }
+
+    /**
+     * Discards a session whose connection failed, so it is never handed out again.
+     *
+     * @param ftpClient
+     *          A session previously obtained from {@link #borrow()}.
+     */
+    public void invalidate(FTPClient ftpClient) {
+        disconnect(ftpClient);
+    }
+
+    /**
+     * Connects a session again after its connection dropped, e.g. the main session, logging in with the pool's
+     * settings. The server is tried up to the configured number of retries, waiting longer before each attempt.
+     *
+     * @param ftpClient
+     *          The session to reconnect, connected or not.
+     * @throws IOException
+     *          if the server could not be reached or refused the login.
+     */
+    public void reconnect(FTPClient ftpClient) throws IOException {
+        disconnect(ftpClient);
+        connect(ftpClient);
+    }
+
+    /**
+     * Tells a dropped or reset connection, after which the same request can succeed on a new session, from errors
+     * that would only repeat, such as a local file that cannot be written.
+     *
+     * @param e
+     *          What an operation on a session threw.
+     * @return  true if the error came from the connection to the server
+     */
+    public static boolean isTransient(IOException e) {
+        if (e instanceof CopyStreamException && ((CopyStreamException) e).getIOException() != null) {
+            e = ((CopyStreamException) e).getIOException();
+        }
+        // a TLS connection that is reset or closed mid-record
+        if (e instanceof SSLException && e.getCause() instanceof IOException) {
+            e = (IOException) e.getCause();
+        }
+        return e instanceof FTPConnectionClosedException || e instanceof SocketException || e instanceof EOFException
+                || (e instanceof InterruptedIOException && !(e.getCause() instanceof InterruptedException)
+                        && !Thread.currentThread().isInterrupted());
+    }
+
+    /**
+     * Sends NOOP on every idle session so the server does not time it out, dropping the sessions that no longer
+     * answer.
+     */
+    public void keepAlive() {
+        int count = idle.size();
+        for (int i = 0; i < count; i++) {
+            IdleSession session = idle.poll();
+            if (session == null) {
+                break;
+            }
+            if (answers(session.ftpClient)) {
+                idle.offer(new IdleSession(session.ftpClient));
+            } else {
+                disconnect(session.ftpClient);
+            }
+        }
+    }
+
+    /**
+     * Logs out and disconnects every idle session.
+     */
+    @Override
+    public void close() {
+        IdleSession session;
+        while ((session = idle.poll()) != null) {
+            try {
+                session.ftpClient.logout();
+            } catch (IOException e) {
+                // the session is being thrown away anyway
+            }
+            disconnect(session.ftpClient);
+        }
+    }
+
+    /**
+     * Connects and logs in a new session, using the same settings main applies to its own session.
+     */
+    private FTPClient open() throws IOException {
+        SSLContext context = secure;
+        FTPClient ftpClient;
+        if (context != null) {
+            SecureFTPClient secureClient = new SecureFTPClient(context, metrics);
+            secureClient.setSessionReuse(sessionReuse);
+            ftpClient = secureClient;
+        } else {
+            ftpClient = new StreamingFTPClient();
+        }
+        if (metrics != null) {
+            metrics.instrument(ftpClient);
+        }
+        connect(ftpClient);
+        return ftpClient;
+    }
+
+    /**
+     * Connects and logs in a session, retrying with exponential backoff while the server cannot be reached or
+     * turns the connection away. A refused login is not retried.
+     */
+    private void connect(FTPClient ftpClient) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            try {
+                if (port > 0) {
+                    ftpClient.connect(server, port);
+                } else {
+                    ftpClient.connect(server);
+                }
+
+                if (!FTPReply.isPositiveCompletion(ftpClient.getReplyCode())) {
+                    throw new FTPConnectionClosedException("FTP server refused connection.");
+                }
+            } catch (IOException e) {
+                disconnect(ftpClient);
+                if (attempt >= retries) {
+                    throw e;
+                }
+                backOff(attempt);
+                continue;
+            }
+
+            try {
+                if (!ftpClient.login(user, pass)) {
+                    throw new IOException("FTP server refused login.");
+                }
+
+                ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+                ftpClient.enterLocalPassiveMode();
+                return;
+            } catch (IOException e) {
+                disconnect(ftpClient);
+                if (!isTransient(e) || attempt >= retries) {
+                    throw e;
+                }
+                backOff(attempt);
+            }
+        }
+    }
+
+    /**
+     * Waits before the next attempt: twice as long as before the previous one, capped, with jitter so the sessions
+     * of a pool do not all come back at the same moment.
+     */
+    private static void backOff(int attempt) throws IOException {
+        long millis = Math.min(BACKOFF_MILLIS << Math.min(attempt, 16), MAX_BACKOFF_MILLIS);
+        millis = millis / 2 + ThreadLocalRandom.current().nextLong(millis / 2 + 1);
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to reconnect.");
+        }
+    }
+
+    private static boolean answers(FTPClient ftpClient) {
+        try {
+            return ftpClient.sendNoOp();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void disconnect(FTPClient ftpClient) {
+        if (ftpClient.isConnected()) {
+            try {
+                ftpClient.disconnect();
+            } catch (IOException e) {
+                // do nothing
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Digest of a file computed from the bytes of its transfer as they pass through, so no second pass over the file is
+ * needed. The first megabyte is hashed on the transfer thread; beyond that, data is copied into a small ring of
+ * reusable chunks that a hashing thread works through, so a slow digest overlaps the transfer instead of holding it
+ * up. The ring is bounded, so a digest that cannot keep up slows the transfer rather than buffering the file.
+ */
+public class StreamingDigest implements Closeable {
+    private static final int INLINE_BYTES = 1024 * 1024;
+    private static final int CHUNK_BYTES = 256 * 1024;
+    private static final int CHUNKS = 4;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private static final ExecutorService hashers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "hasher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final MessageDigest messageDigest;
+    private final Checksum checksum;
+    private long inline;
+    private ArrayBlockingQueue<ByteBuffer> free;
+    private ArrayBlockingQueue<ByteBuffer> filled;
+    private ByteBuffer current;
+    private Future<?> worker;
+
+    /**
+     * @param algorithm
+     *          crc32, crc32c, md5 or sha256.
+     * @throws IllegalArgumentException
+     *          if the algorithm is not one of those.
+     */
+    public StreamingDigest(String algorithm) {
+        switch (algorithm) {
+        case "crc32":
+            checksum = new CRC32();
+            messageDigest = null;
+            break;
+        case "crc32c":
+            checksum = new CRC32C();
+            messageDigest = null;
+            break;
+        case "md5":
+            checksum = null;
+            messageDigest = newMessageDigest("MD5");
+            break;
+        case "sha256":
+            checksum = null;
+            messageDigest = newMessageDigest("SHA-256");
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown checksum algorithm: " + algorithm);
+        }
+    }
+
+    /**
+     * Adds bytes to the digest.
+     *
+     * @throws IOException
+     *          if the thread was interrupted while waiting for the hashing thread.
+     */
+    public void update(byte[] bytes, int offset, int length) throws IOException {
+        if (worker == null && inline + length <= INLINE_BYTES) {
+            inline += length;
+            hash(ByteBuffer.wrap(bytes, offset, length));
+            return;
+        }
+        while (length > 0) {
+            ByteBuffer chunk = nextChunk();
+            int n = Math.min(length, chunk.remaining());
+            chunk.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Adds the remaining bytes of a buffer to the digest, leaving its position at its limit.
+     *
+     * @throws IOException
+     *          if the thread was interrupted while waiting for the hashing thread.
+     */
+    public void update(ByteBuffer bytes) throws IOException {
+        if (worker == null && inline + bytes.remaining() <= INLINE_BYTES) {
+            inline += bytes.remaining();
+            hash(bytes);
+            return;
+        }
+        while (bytes.hasRemaining()) {
+            ByteBuffer chunk = nextChunk();
+            int n = Math.min(bytes.remaining(), chunk.remaining());
+            int limit = bytes.limit();
+            bytes.limit(bytes.position() + n);
+            chunk.put(bytes);
+            bytes.limit(limit);
+        }
+    }
+
+    /**
+     * Waits for the hashing thread to catch up and returns the digest of everything added.
+     *
+     * @return  The digest as lower-case hex
+     * @throws IOException
+     *          if the thread was interrupted while waiting for the hashing thread.
+     */
+    public String finish() throws IOException {
+        if (worker != null) {
+            try {
+                if (current != null && current.position() > 0) {
+                    filled.put(current);
+                }
+                current = null;
+                filled.put(END);
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the checksum.");
+            } catch (ExecutionException e) {
+                throw new IOException("Checksum failed.", e.getCause());
+            }
+            worker = null;
+        }
+        if (checksum != null) {
+            return String.format("%08x", checksum.getValue());
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : messageDigest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Stops the hashing thread of a transfer that is abandoned before {@link #finish()}.
+     */
+    @Override
+    public void close() {
+        if (worker != null) {
+            worker.cancel(true);
+            worker = null;
+        }
+    }
+
+    /**
+     * @return  The chunk to copy into, handing full chunks to the hashing thread and starting it when needed
+     */
+    private ByteBuffer nextChunk() throws IOException {
+        try {
+            if (worker == null) {
+                free = new ArrayBlockingQueue<ByteBuffer>(CHUNKS);
+                filled = new ArrayBlockingQueue<ByteBuffer>(CHUNKS + 1);
+                for (int i = 0; i < CHUNKS; i++) {
+                    free.add(ByteBuffer.allocate(CHUNK_BYTES));
+                }
+                worker = hashers.submit(this::drain);
+            }
+            if (current != null && !current.hasRemaining()) {
+                filled.put(current);
+                current = null;
+            }
+            if (current == null) {
+                current = free.take();
+            }
+            return current;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the checksum.");
+        }
+    }
+
+    private Void drain() throws InterruptedException {
+        ByteBuffer chunk;
+        while ((chunk = filled.take()) != END) {
+            chunk.flip();
+            hash(chunk);
+            chunk.clear();
+            free.put(chunk);
+        }
+        return null;
+    }
+
+    private void hash(ByteBuffer bytes) {
+        if (checksum != null) {
+            checksum.update(bytes);
+        } else {
+            messageDigest.update(bytes);
+        }
+    }
+
+    private static MessageDigest newMessageDigest(String name) {
+        try {
+            return MessageDigest.getInstance(name);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Checksum algorithm not available: " + name, e);
+        }
+    }
+}
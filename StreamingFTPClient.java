@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import javax.net.SocketFactory;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+/**
+ * An FTPClient that hands out the raw data connection of a command, so a directory can be parsed one line at a time
+ * as the server sends it, and file data can be moved between the socket and a FileChannel without going through
+ * stream copies. Its sockets are created from SocketChannels, so passive data connections have a channel.
+ *
+ * It also keeps track of MODE Z (deflate-compressed data connections), which commons-net does not know about: a
+ * caller that deflates and inflates the data itself asks for it with {@link #setDeflate(int)} just before opening
+ * the data connection, and every other data connection, listings included, is opened in stream mode. The mode is
+ * only changed on the server when it differs, so consecutive compressed transfers cost no extra round trips.
+ */
+public class StreamingFTPClient extends FTPClient {
+    /**
+     * Compression level the server's MODE Z is set to, -1 if MODE Z is on at the server's default level, 0 in
+     * stream mode.
+     */
+    private int deflateLevel;
+
+    /**
+     * Whether the next data connection is opened in MODE Z.
+     */
+    private boolean deflateNext;
+
+    public StreamingFTPClient() {
+        setSocketFactory(new ChannelSocketFactory());
+    }
+
+    /**
+     * A new connection, e.g. after a reconnect, starts in stream mode whatever the previous one was in.
+     */
+    @Override
+    protected void _connectAction_() throws IOException {
+        deflateLevel = 0;
+        deflateNext = false;
+        super._connectAction_();
+    }
+
+    /**
+     * Sends a command that transfers data (LIST, MLSD, RETR, STOR, APPE) and opens its data connection, honouring
+     * any restart offset. Once the connection has been read or written and closed, the caller must finish the
+     * command with {@link #completePendingCommand()}.
+     *
+     * @param command
+     *          The command to send.
+     * @param arg
+     *          Its argument, usually a path, or null for none.
+     * @return  The data connection, or null if the server refused the command
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    public Socket openDataConnection(String command, String arg) throws IOException {
+        return _openDataConnection_(command, arg);
+    }
+
+    /**
+     * Puts the server in MODE Z at the given level for the next data connection only. The caller must deflate what
+     * it sends and inflate what it receives on that connection, as a zlib stream.
+     *
+     * @param level
+     *          Compression level from 1 to 9, which the server is asked to use with OPTS MODE Z LEVEL.
+     * @return  false if the server refused MODE Z, in which case the next connection stays in stream mode
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    public boolean setDeflate(int level) throws IOException {
+        if (deflateLevel == 0) {
+            if (!FTPReply.isPositiveCompletion(sendCommand("MODE", "Z"))) {
+                return false;
+            }
+            deflateLevel = -1;
+        }
+        if (deflateLevel != level) {
+            // servers without levels keep compressing at their default, which is still MODE Z
+            sendCommand("OPTS", "MODE Z LEVEL " + level);
+            deflateLevel = level;
+        }
+        deflateNext = true;
+        return true;
+    }
+
+    /**
+     * Puts the server back in stream mode if it was left in MODE Z, for commands such as a server-to-server RETR
+     * that move data without a data connection of this client.
+     *
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    public void setStreamMode() throws IOException {
+        deflateNext = false;
+        if (deflateLevel != 0 && FTPReply.isPositiveCompletion(sendCommand("MODE", "S"))) {
+            deflateLevel = 0;
+        }
+    }
+
+    /**
+     * Every data connection, whether opened by this class or by commons-net's own transfer and listing methods,
+     * passes through here, so anything not asked for with {@link #setDeflate(int)} is opened in stream mode.
+     */
+    @Override
+    protected Socket _openDataConnection_(String command, String arg) throws IOException {
+        if (deflateNext) {
+            deflateNext = false;
+        } else {
+            setStreamMode();
+        }
+        return super._openDataConnection_(command, arg);
+    }
+
+    /**
+     * Creates unconnected sockets backed by a SocketChannel, which commons-net then connects itself.
+     */
+    private static class ChannelSocketFactory extends SocketFactory {
+        @Override
+        public Socket createSocket() throws IOException {
+            return SocketChannel.open().socket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            Socket socket = createSocket();
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            Socket socket = createSocket();
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            Socket socket = createSocket();
+            socket.bind(new InetSocketAddress(localHost, localPort));
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            Socket socket = createSocket();
+            socket.bind(new InetSocketAddress(localHost, localPort));
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the size and modification time of both copies of every file after a sync, so the next sync can tell
+ * which side changed even when the server only offers the coarse timestamps of LIST. The manifest lives in the
+ * working directory under a name derived from the server and the pair of directories being synced, which its first
+ * line repeats.
+ */
+public class SyncManifest {
+    /**
+     * State of one file as it was after the last sync. A remote time of -1 means the server's time is not known.
+     */
+    public static class Entry {
+        final long remoteSize;
+        final long remoteTime;
+        final long localSize;
+        final long localTime;
+
+        Entry(long remoteSize, long remoteTime, long localSize, long localTime) {
+            this.remoteSize = remoteSize;
+            this.remoteTime = remoteTime;
+            this.localSize = localSize;
+            this.localTime = localTime;
+        }
+
+        /**
+         * @return  true if neither copy changed since this entry was recorded
+         */
+        boolean matches(long remoteSize, long remoteTime, long localSize, long localTime) {
+            return this.remoteSize == remoteSize && this.localSize == localSize && this.localTime == localTime
+                    && (this.remoteTime < 0 || this.remoteTime == remoteTime);
+        }
+    }
+
+    private final String job;
+    private final File file;
+    private final Map<String, Entry> previous = new HashMap<String, Entry>();
+    private final Map<String, Entry> current = new HashMap<String, Entry>();
+
+    /**
+     * Loads the manifest of the last sync between the same two directories of the same server, if there was one.
+     *
+     * @param job
+     *          Description of the sync that identifies it between runs, e.g. the server and both absolute paths.
+     * @throws IOException
+     *          if the manifest exists but could not be read.
+     */
+    public SyncManifest(String job) throws IOException {
+        this.job = job;
+        file = new File(".ftp-sync-" + Integer.toHexString(job.hashCode()));
+        if (!file.isFile()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            // a manifest of another sync that happens to share the name would skip files that did change
+            if (!("#sync\t" + job).equals(reader.readLine())) {
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 5) {
+                    previous.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3]), Long.parseLong(fields[4])));
+                }
+            }
+        } catch (NumberFormatException e) {
+            // a damaged manifest only costs a full comparison
+            previous.clear();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param path
+     *          Path of the file relative to the synced directories, with "/" separators.
+     * @return  The state recorded by the last sync, or null if the file was not part of it
+     */
+    public synchronized Entry get(String path) {
+        return previous.get(path);
+    }
+
+    /**
+     * Records the state of a file that is in step after this sync.
+     *
+     * @param path
+     *          Path of the file relative to the synced directories, with "/" separators.
+     */
+    public synchronized void put(String path, long remoteSize, long remoteTime, long localSize, long localTime) {
+        current.put(path, new Entry(remoteSize, remoteTime, localSize, localTime));
+    }
+
+    /**
+     * Replaces the manifest on disk with the files recorded during this sync.
+     *
+     * @throws IOException
+     *          if the manifest could not be written.
+     */
+    public synchronized void save() throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            writer.println("#sync\t" + job);
+            for (Map.Entry<String, Entry> e : current.entrySet()) {
+                Entry entry = e.getValue();
+                writer.println(e.getKey() + "\t" + entry.remoteSize + "\t" + entry.remoteTime + "\t" + entry.localSize
+                        + "\t" + entry.localTime);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes files and directories to a channel as a tar archive (POSIX ustar, with GNU long names for paths that do
+ * not fit the header), so a remote directory can be streamed into `tar x` without staging it on disk. A file's data
+ * is written through this channel after its header, which keeps the entry at exactly the size the header announced
+ * even if the remote file changed since it was listed.
+ */
+public class TarWriter implements WritableByteChannel {
+    private static final int BLOCK = 512;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    private final WritableByteChannel out;
+    private final ByteBuffer header = ByteBuffer.allocate(BLOCK);
+    private final ByteBuffer zeros = ByteBuffer.allocate(2 * BLOCK);
+    private long entrySize;
+    private long remaining;
+    private boolean finished;
+
+    /**
+     * @param out
+     *          Channel the archive is written to, e.g. standard output.
+     */
+    public TarWriter(WritableByteChannel out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the entry of a directory.
+     *
+     * @param name
+     *          Path of the directory inside the archive, using '/' as separator.
+     * @param time
+     *          Its modification time in milliseconds since the epoch, -1 if unknown.
+     * @throws IOException
+     *          if the channel could not be written to.
+     */
+    public void putDirectory(String name, long time) throws IOException {
+        putHeader(name.endsWith("/") ? name : name + "/", '5', 0, time);
+    }
+
+    /**
+     * Starts the entry of a file. Its data is then written through this channel, and the entry ended with
+     * {@link #closeFile()}.
+     *
+     * @param name
+     *          Path of the file inside the archive, using '/' as separator.
+     * @param size
+     *          Number of bytes of data the header announces.
+     * @param time
+     *          Its modification time in milliseconds since the epoch, -1 if unknown.
+     * @throws IOException
+     *          if the channel could not be written to.
+     */
+    public void putFile(String name, long size, long time) throws IOException {
+        putHeader(name, '0', size, time);
+        entrySize = size;
+        remaining = size;
+    }
+
+    /**
+     * Writes data of the current file. Bytes beyond the size announced in its header, e.g. of a file that grew
+     * since it was listed, are dropped so the archive stays readable.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (length > remaining) {
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + (int) remaining);
+            writeFully(part);
+        } else {
+            writeFully(src);
+        }
+        src.position(src.limit());
+        remaining -= Math.min(length, remaining);
+        return length;
+    }
+
+    /**
+     * Ends the entry of the current file, filling with zeros whatever of the announced size was not written, e.g.
+     * of a file that shrank or could not be retrieved, and padding it to a full block.
+     *
+     * @return  The number of bytes that were missing
+     * @throws IOException
+     *          if the channel could not be written to.
+     */
+    public long closeFile() throws IOException {
+        long missing = remaining;
+        while (remaining > 0) {
+            int length = (int) Math.min(remaining, zeros.capacity());
+            writeZeros(length);
+            remaining -= length;
+        }
+        pad(entrySize);
+        entrySize = 0;
+        return missing;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !finished;
+    }
+
+    /**
+     * Writes the two empty blocks that end an archive. The underlying channel is left open.
+     *
+     * @throws IOException
+     *          if the channel could not be written to.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            finished = true;
+            writeZeros(2 * BLOCK);
+        }
+    }
+
+    private void putHeader(String name, char type, long size, long time) throws IOException {
+        byte[] path = name.getBytes(StandardCharsets.UTF_8);
+        byte[] prefix = new byte[0];
+        if (path.length > 100) {
+            // ustar splits long paths at a '/' into a prefix of up to 155 bytes and a name of up to 100
+            int split = -1;
+            for (int i = Math.min(path.length - 2, 155); i > 0; i--) {
+                if (path[i] == '/' && path.length - i - 1 <= 100) {
+                    split = i;
+                    break;
+                }
+            }
+            if (split > 0) {
+                prefix = Arrays.copyOfRange(path, 0, split);
+                path = Arrays.copyOfRange(path, split + 1, path.length);
+            } else {
+                // too long for ustar, GNU tar and bsdtar both take the name from a preceding entry
+                byte[] longName = Arrays.copyOf(path, path.length + 1);
+                putHeader("././@LongLink", 'L', longName.length, 0, new byte[0]);
+                writeFully(ByteBuffer.wrap(longName));
+                pad(longName.length);
+                path = Arrays.copyOf(path, 100);
+            }
+        }
+        putHeader(path, type, size, time, prefix);
+    }
+
+    private void putHeader(String name, char type, long size, long time, byte[] prefix) throws IOException {
+        putHeader(name.getBytes(StandardCharsets.UTF_8), type, size, time, prefix);
+    }
+
+    private void putHeader(byte[] path, char type, long size, long time, byte[] prefix) throws IOException {
+        byte[] block = header.array();
+        Arrays.fill(block, (byte) 0);
+        System.arraycopy(path, 0, block, 0, Math.min(path.length, 100));
+        octal(block, 100, 8, type == '5' ? 0755 : 0644);
+        octal(block, 108, 8, 0);
+        octal(block, 116, 8, 0);
+        if (size > MAX_OCTAL_SIZE) {
+            // larger sizes are stored in binary, flagged by the top bit of the field's first byte
+            block[124] = (byte) 0x80;
+            for (int i = 0; i < 8; i++) {
+                block[135 - i] = (byte) (size >>> (8 * i));
+            }
+        } else {
+            octal(block, 124, 12, size);
+        }
+        octal(block, 136, 12, Math.max(time, 0) / 1000);
+        Arrays.fill(block, 148, 156, (byte) ' ');
+        block[156] = (byte) type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, block, 257, 6);
+        block[263] = '0';
+        block[264] = '0';
+        System.arraycopy(prefix, 0, block, 345, Math.min(prefix.length, 155));
+
+        long checksum = 0;
+        for (byte b : block) {
+            checksum += b & 0xff;
+        }
+        octal(block, 148, 7, checksum);
+
+        header.clear();
+        writeFully(header);
+    }
+
+    /**
+     * Writes a number as zero-padded octal digits followed by a NUL, filling a field of the given length.
+     */
+    private static void octal(byte[] block, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int pad = length - 1 - digits.length();
+        for (int i = 0; i < length - 1; i++) {
+            block[offset + i] = (byte) (i < pad ? '0' : digits.charAt(i - pad));
+        }
+        block[offset + length - 1] = 0;
+    }
+
+    /**
+     * Fills the last block of an entry of the given size with zeros.
+     */
+    private void pad(long size) throws IOException {
+        int rest = (int) (size % BLOCK);
+        if (rest > 0) {
+            writeZeros(BLOCK - rest);
+        }
+    }
+
+    private void writeZeros(int length) throws IOException {
+        zeros.clear();
+        zeros.limit(length);
+        writeFully(zeros);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import org.apache.commons.net.ftp.FTPClient;
+
+/**
+ * Decides which transfers are sent deflated (MODE Z) and counts what compression achieved. Files that are already
+ * compressed are sent as they are: by extension, and for uploads also when a deflated sample of the start of the
+ * file is barely smaller. If the server does not offer MODE Z, every file is sent uncompressed.
+ */
+public class TransferCompression {
+    /**
+     * Extensions of formats that are compressed already, where deflating again costs CPU and saves nothing.
+     */
+    private static final Set<String> COMPRESSED = new HashSet<String>(Arrays.asList("gz", "tgz", "zip", "bz2",
+            "tbz2", "xz", "txz", "zst", "lz4", "lzma", "7z", "rar", "jar", "war", "apk", "jpg", "jpeg", "png", "gif",
+            "webp", "heic", "mp3", "mp4", "m4a", "m4v", "mkv", "mov", "avi", "webm", "ogg", "flac", "docx", "xlsx",
+            "pptx", "parquet", "orc"));
+
+    /**
+     * Number of bytes sampled from the start of a local file, and the deflated size relative to the sample above
+     * which the file is sent uncompressed.
+     */
+    private static final int SAMPLE = 64 * 1024;
+    private static final double INCOMPRESSIBLE = 0.9;
+
+    private final int level;
+    private volatile Boolean supported;
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+
+    /**
+     * @param level
+     *          Deflate level from 1 (fastest) to 9 (smallest).
+     * @throws IllegalArgumentException
+     *          if the level is out of that range.
+     */
+    public TransferCompression(int level) {
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 1 and 9: " + level);
+        }
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Decides whether the next transfer on a session is deflated and, if so, puts the session in MODE Z for it.
+     *
+     * @param ftpClient
+     *          The session the file is about to be transferred on.
+     * @param name
+     *          Name of the file, whose extension may rule out compression.
+     * @param localFile
+     *          The local file of an upload, which is sampled, or null for a download.
+     * @return  true if the next data connection is deflated
+     * @throws IOException
+     *          if any network or IO error occurred.
+     */
+    public boolean select(FTPClient ftpClient, String name, File localFile) throws IOException {
+        if (!(ftpClient instanceof StreamingFTPClient)) {
+            return false;
+        }
+        Boolean modeZ = supported;
+        if (modeZ == null) {
+            modeZ = ftpClient.hasFeature("MODE", "Z");
+            if (!modeZ) {
+                System.err.println("The server does not offer MODE Z, transferring uncompressed.");
+            }
+            supported = modeZ;
+        }
+        if (!modeZ) {
+            return false;
+        }
+        if (!worthCompressing(name, localFile)) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        if (!((StreamingFTPClient) ftpClient).setDeflate(level)) {
+            System.err.println("The server refused MODE Z, transferring uncompressed.");
+            supported = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records a file that was transferred deflated.
+     *
+     * @param size
+     *          Number of bytes of the file that were transferred.
+     * @param wireSize
+     *          Number of bytes that crossed the data connection for them.
+     */
+    public void record(long size, long wireSize) {
+        compressed.incrementAndGet();
+        bytes.addAndGet(size);
+        wireBytes.addAndGet(wireSize);
+    }
+
+    /**
+     * @return  The counts so far and the current time, to be passed to {@link #printSummary(long[])}
+     */
+    public long[] totals() {
+        return new long[] { compressed.get(), skipped.get(), bytes.get(), wireBytes.get(), System.nanoTime() };
+    }
+
+    /**
+     * Prints the ratio and throughput compression achieved since the given totals were taken.
+     *
+     * @param since
+     *          Totals taken when the job started.
+     */
+    public void printSummary(long[] since) {
+        long[] now = totals();
+        long files = now[0] - since[0];
+        long size = now[2] - since[2];
+        long wire = now[3] - since[3];
+        double seconds = Math.max(now[4] - since[4], 1) / 1e9;
+        System.out.println(String.format("Compressed %d file(s) at level %d: %d byte(s) sent as %d (ratio %.2f), "
+                + "%.2f MB/s of data over %.2f MB/s on the wire, %d sent uncompressed", files, level, size, wire,
+                wire > 0 ? (double) size / wire : 1.0, size / seconds / 1000000, wire / seconds / 1000000,
+                now[1] - since[1]));
+    }
+
+    private static boolean worthCompressing(String name, File localFile) throws IOException {
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+        if (localFile == null) {
+            return true;
+        }
+
+        byte[] sample = new byte[SAMPLE];
+        int length = 0;
+        InputStream in = new FileInputStream(localFile);
+        try {
+            int n;
+            while (length < sample.length && (n = in.read(sample, length, sample.length - length)) > 0) {
+                length += n;
+            }
+        } finally {
+            in.close();
+        }
+        if (length == 0) {
+            return true;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] out = new byte[SAMPLE];
+            long deflated = 0;
+            while (!deflater.finished()) {
+                deflated += deflater.deflate(out);
+            }
+            return deflated < length * INCOMPRESSIBLE;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records which files of a recursive transfer have already completed, so running the same command again after a
+ * failure skips them. Each file is recorded with the size and modification time its source had, and is only skipped
+ * while the source still has them. The journal lives in the working directory under a name derived from the job,
+ * starts with a header naming the job so another job whose name hashes the same starts over instead of resuming
+ * from it, and is deleted once a run finishes without any failures.
+ */
+public class TransferJournal implements Closeable {
+    private final File file;
+    private final Map<String, String> done = new HashMap<String, String>();
+    private final Writer writer;
+    private boolean failed = false;
+
+    /**
+     * Opens the journal of a job, loading the files a previous run completed.
+     *
+     * @param job
+     *          Description of the job that identifies it between runs, e.g. the server, the command and both paths.
+     * @throws IOException
+     *          if the journal could not be read or created.
+     */
+    public TransferJournal(String job) throws IOException {
+        file = new File(".ftp-journal-" + Integer.toHexString(job.hashCode()));
+        boolean resuming = false;
+        if (file.isFile()) {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                resuming = ("#journal\t" + job).equals(reader.readLine());
+                String line;
+                while (resuming && (line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 3);
+                    if (fields.length == 3) {
+                        done.put(fields[2], fields[0] + "\t" + fields[1]);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        writer = new FileWriter(file, resuming);
+        if (resuming) {
+            System.out.println("RESUMING from " + file.getName() + ", " + done.size() + " file(s) already done");
+        } else {
+            writer.write("#journal\t" + job);
+            writer.write(System.lineSeparator());
+            writer.flush();
+        }
+    }
+
+    /**
+     * @param localPath
+     *          Local path of the file, the local side being the same whether the job runs in parallel or not.
+     * @param size
+     *          Size of the source file now.
+     * @param time
+     *          Modification time of the source file now, -1 if not known.
+     * @return  true if a previous run already transferred the file and its source did not change since
+     */
+    public synchronized boolean isDone(String localPath, long size, long time) {
+        return (size + "\t" + time).equals(done.get(new File(localPath).getAbsolutePath()));
+    }
+
+    /**
+     * Records a completed file. The entry is flushed straight away so it survives the process being killed.
+     *
+     * @param localPath
+     *          Local path of the file.
+     * @param size
+     *          Size the source file had when it was transferred.
+     * @param time
+     *          Modification time the source file had when it was transferred, -1 if not known.
+     */
+    public synchronized void markDone(String localPath, long size, long time) {
+        String path = new File(localPath).getAbsolutePath();
+        try {
+            writer.write(size + "\t" + time + "\t" + path);
+            writer.write(System.lineSeparator());
+            writer.flush();
+            done.put(path, size + "\t" + time);
+        } catch (IOException e) {
+            System.err.println("COULD NOT update the journal " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records that a file failed, which keeps the journal for the next run.
+     */
+    public synchronized void markFailed() {
+        failed = true;
+    }
+
+    /**
+     * Closes the journal, deleting it if every file of the job is done.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // nothing more will be written anyway
+        }
+        if (failed) {
+            System.err.println("Some files failed, run the same command again to resume from " + file.getName());
+        } else {
+            file.delete();
+        }
+    }
+}
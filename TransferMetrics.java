@@ -0,0 +1,372 @@
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.net.ProtocolCommandEvent;
+import org.apache.commons.net.ProtocolCommandListener;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.io.CopyStreamEvent;
+import org.apache.commons.net.io.CopyStreamListener;
+
+/**
+ * Counters and histograms of everything the sessions of one run do: the round-trip latency of every command and of
+ * the TLS handshakes of FTPS sessions, the throughput of every transfer, the bytes moved so far and still in flight,
+ * the transfers that failed, were aborted or were resumed, and the sessions that reconnected. Each session is
+ * instrumented with a listener that watches its control connection, so a transfer is timed from the RETR or STOR
+ * until its final reply whichever code path moves the data.
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+    private final ConcurrentHashMap<String, Histogram> commandLatency = new ConcurrentHashMap<String, Histogram>();
+    private final Histogram transferThroughput = new Histogram();
+    private final Histogram tlsHandshakes = new Histogram();
+    private final AtomicLong tlsResumed = new AtomicLong();
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private final AtomicLong bytesInFlight = new AtomicLong();
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private volatile long busySince;
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     *
+     * @param name
+     *          Object name to register under, e.g. "ftpclient:type=TransferMetrics".
+     * @return  true if they were registered, false if JMX refused them
+     */
+    public boolean register(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+            return true;
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Attaches a listener to a session that feeds its commands and transfers into these metrics. A session is used by
+     * one thread at a time, so the listener keeps its per-transfer state in plain fields.
+     *
+     * @param ftpClient
+     *          The session to watch.
+     */
+    public void instrument(FTPClient ftpClient) {
+        SessionListener listener = new SessionListener();
+        ftpClient.addProtocolCommandListener(listener);
+        ftpClient.setCopyStreamListener(listener);
+    }
+
+    /**
+     * Records a transfer that continues the partial copy left by an earlier attempt.
+     */
+    public void retried() {
+        retries.incrementAndGet();
+    }
+
+    /**
+     * Records a session connected again after its connection dropped, before what it was doing is repeated.
+     */
+    public void reconnected() {
+        reconnects.incrementAndGet();
+    }
+
+    /**
+     * Records a TLS handshake of a control or data connection.
+     *
+     * @param nanos
+     *          Time the handshake took.
+     * @param resumed
+     *          Whether it resumed an earlier session rather than negotiating a new one.
+     */
+    public void handshake(long nanos, boolean resumed) {
+        tlsHandshakes.record(nanos / 1000);
+        if (resumed) {
+            tlsResumed.incrementAndGet();
+        }
+    }
+
+    @Override
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    @Override
+    public long getBytesInFlight() {
+        return bytesInFlight.get();
+    }
+
+    @Override
+    public int getActiveTransfers() {
+        return activeTransfers.get();
+    }
+
+    @Override
+    public long getTransfersSucceeded() {
+        return succeeded.get();
+    }
+
+    @Override
+    public long getTransfersFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public long getTransfersAborted() {
+        return aborted.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    @Override
+    public long getTlsHandshakes() {
+        return tlsHandshakes.count();
+    }
+
+    @Override
+    public long getTlsResumedHandshakes() {
+        return tlsResumed.get();
+    }
+
+    @Override
+    public String getTlsHandshakeLatency() {
+        Histogram h = tlsHandshakes;
+        return String.format(Locale.ROOT, "count=%d resumed=%d mean=%.0f p50=%d p90=%d p99=%d max=%d", h.count(),
+                tlsResumed.get(), h.mean(), h.percentile(0.5), h.percentile(0.9), h.percentile(0.99), h.max());
+    }
+
+    @Override
+    public double getThroughput() {
+        long nanos = busyNanos.get();
+        long since = busySince;
+        if (activeTransfers.get() > 0 && since > 0) {
+            nanos += System.nanoTime() - since;
+        }
+        return nanos > 0 ? bytesTransferred.get() * 1e9 / nanos : 0;
+    }
+
+    @Override
+    public String[] getCommandLatencies() {
+        Map<String, Histogram> sorted = new TreeMap<String, Histogram>(commandLatency);
+        String[] lines = new String[sorted.size()];
+        int i = 0;
+        for (Map.Entry<String, Histogram> e : sorted.entrySet()) {
+            Histogram h = e.getValue();
+            lines[i++] = String.format(Locale.ROOT, "%s count=%d mean=%.0f p50=%d p90=%d p99=%d max=%d", e.getKey(),
+                    h.count(), h.mean(), h.percentile(0.5), h.percentile(0.9), h.percentile(0.99), h.max());
+        }
+        return lines;
+    }
+
+    @Override
+    public String getJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"bytesTransferred\": ").append(bytesTransferred.get()).append(",\n");
+        json.append("  \"bytesInFlight\": ").append(bytesInFlight.get()).append(",\n");
+        json.append("  \"activeTransfers\": ").append(activeTransfers.get()).append(",\n");
+        json.append("  \"transfersSucceeded\": ").append(succeeded.get()).append(",\n");
+        json.append("  \"transfersFailed\": ").append(failed.get()).append(",\n");
+        json.append("  \"transfersAborted\": ").append(aborted.get()).append(",\n");
+        json.append("  \"retries\": ").append(retries.get()).append(",\n");
+        json.append("  \"reconnects\": ").append(reconnects.get()).append(",\n");
+        json.append("  \"throughputBytesPerSecond\": ").append(String.format(Locale.ROOT, "%.0f", getThroughput()))
+                .append(",\n");
+        json.append("  \"transferThroughputBytesPerSecond\": ");
+        transferThroughput.appendJson(json);
+        json.append(",\n");
+        json.append("  \"tlsResumedHandshakes\": ").append(tlsResumed.get()).append(",\n");
+        json.append("  \"tlsHandshakeMicros\": ");
+        tlsHandshakes.appendJson(json);
+        json.append(",\n");
+        json.append("  \"commandLatencyMicros\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Histogram> e : new TreeMap<String, Histogram>(commandLatency).entrySet()) {
+            json.append(separator).append("    \"").append(e.getKey()).append("\": ");
+            e.getValue().appendJson(json);
+            separator = ",\n";
+        }
+        json.append("\n  }\n");
+        json.append("}");
+        return json.toString();
+    }
+
+    private void transferStarted() {
+        if (activeTransfers.getAndIncrement() == 0) {
+            busySince = System.nanoTime();
+        }
+    }
+
+    private void transferFinished(long bytes) {
+        bytesInFlight.addAndGet(-bytes);
+        if (activeTransfers.decrementAndGet() == 0) {
+            busyNanos.addAndGet(System.nanoTime() - busySince);
+        }
+    }
+
+    private static boolean isTransferCommand(String command) {
+        return command.equals("RETR") || command.equals("STOR") || command.equals("APPE") || command.equals("STOU");
+    }
+
+    /**
+     * Watches one session. Latency is the time from a command to its first reply; a transfer lasts from its command
+     * to its final reply, and the bytes it moved are counted as they are copied.
+     */
+    private class SessionListener implements ProtocolCommandListener, CopyStreamListener {
+        private String pendingCommand;
+        private long sentAt;
+        private boolean inTransfer;
+        private long transferStart;
+        private long transferBytes;
+
+        @Override
+        public void protocolCommandSent(ProtocolCommandEvent event) {
+            String command = event.getCommand().toUpperCase(Locale.ROOT);
+            long now = System.nanoTime();
+            if (inTransfer) {
+                // the previous transfer never got its final reply, e.g. its data connection could not be opened
+                finishTransfer(false, now);
+            }
+            pendingCommand = command;
+            sentAt = now;
+            if (isTransferCommand(command)) {
+                inTransfer = true;
+                transferStart = now;
+                transferBytes = 0;
+                transferStarted();
+            }
+        }
+
+        @Override
+        public void protocolReplyReceived(ProtocolCommandEvent event) {
+            long now = System.nanoTime();
+            int code = event.getReplyCode();
+            if (pendingCommand != null) {
+                Histogram histogram = commandLatency.get(pendingCommand);
+                if (histogram == null) {
+                    histogram = commandLatency.computeIfAbsent(pendingCommand, k -> new Histogram());
+                }
+                histogram.record((now - sentAt) / 1000);
+                pendingCommand = null;
+            }
+            if (inTransfer && code >= 200) {
+                if (code < 300) {
+                    finishTransfer(true, now);
+                } else if (code == 426 && transferBytes > 0) {
+                    // a byte range closes its connection early on purpose, so the server reports an abort
+                    aborted.incrementAndGet();
+                    finish();
+                } else {
+                    finishTransfer(false, now);
+                }
+            }
+        }
+
+        @Override
+        public void bytesTransferred(CopyStreamEvent event) {
+            bytesTransferred(event.getTotalBytesTransferred(), event.getBytesTransferred(), event.getStreamSize());
+        }
+
+        @Override
+        public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
+            transferBytes += bytesTransferred;
+            bytesInFlight.addAndGet(bytesTransferred);
+            TransferMetrics.this.bytesTransferred.addAndGet(bytesTransferred);
+        }
+
+        private void finishTransfer(boolean success, long now) {
+            if (success) {
+                succeeded.incrementAndGet();
+                long nanos = Math.max(now - transferStart, 1);
+                transferThroughput.record((long) (transferBytes * 1e9 / nanos));
+            } else {
+                failed.incrementAndGet();
+            }
+            finish();
+        }
+
+        private void finish() {
+            inTransfer = false;
+            transferFinished(transferBytes);
+        }
+    }
+
+    /**
+     * A histogram of non-negative values in power of two buckets, safe to record into from several threads without
+     * allocating. Percentiles are reported as the upper bound of the bucket they fall in.
+     */
+    private static class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            long v = Math.max(value, 0);
+            // bucket i holds the values below 2^i that need i bits
+            counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(v));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            long m;
+            while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+                // retry until the larger value is stored
+            }
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        double mean() {
+            long n = count.get();
+            return n > 0 ? (double) sum.get() / n : 0;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double p) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void appendJson(StringBuilder json) {
+            json.append(String.format(Locale.ROOT,
+                    "{\"count\": %d, \"mean\": %.0f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d}", count(),
+                    mean(), percentile(0.5), percentile(0.9), percentile(0.99), max()));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Management interface of {@link TransferMetrics}, registered with the platform MBean server so a running client can
+ * be watched with jconsole or any other JMX tool.
+ */
+public interface TransferMetricsMBean {
+    long getBytesTransferred();
+
+    long getBytesInFlight();
+
+    int getActiveTransfers();
+
+    long getTransfersSucceeded();
+
+    long getTransfersFailed();
+
+    long getTransfersAborted();
+
+    /**
+     * @return  Transfers that continued the partial copy of an earlier attempt
+     */
+    long getRetries();
+
+    /**
+     * @return  Sessions connected again after their connection dropped
+     */
+    long getReconnects();
+
+    long getTlsHandshakes();
+
+    long getTlsResumedHandshakes();
+
+    /**
+     * @return  Count and duration percentiles in microseconds of the TLS handshakes of FTPS control and data
+     *          connections
+     */
+    String getTlsHandshakeLatency();
+
+    /**
+     * @return  Bytes transferred per second of the time at least one transfer was running
+     */
+    double getThroughput();
+
+    /**
+     * @return  One line per command with its count and round-trip latency percentiles in microseconds
+     */
+    String[] getCommandLatencies();
+
+    /**
+     * @return  Everything above as a JSON document
+     */
+    String getJson();
+}
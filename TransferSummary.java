@@ -0,0 +1,56 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Totals of a recursive transfer, updated concurrently by the workers and printed once the transfer has finished.
+ */
+public class TransferSummary {
+    private final String verb;
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final long started = System.nanoTime();
+
+    /**
+     * @param verb
+     *          Past tense of the operation, e.g. "Downloaded", used when printing the summary.
+     */
+    public TransferSummary(String verb) {
+        this.verb = verb;
+    }
+
+    /**
+     * Records a file that was transferred successfully.
+     *
+     * @param size
+     *          Number of bytes in the file.
+     */
+    public void succeeded(long size) {
+        succeeded.incrementAndGet();
+        bytes.addAndGet(size);
+    }
+
+    /**
+     * Records a file that could not be transferred.
+     */
+    public void failed() {
+        failed.incrementAndGet();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Prints the totals, on stderr if anything failed.
+     */
+    public void print() {
+        double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+        String line = String.format("%s %d file(s), %d byte(s) in %.2f s (%.2f MB/s), %d failed", verb,
+                succeeded.get(), bytes.get(), seconds, bytes.get() / seconds / 1000000, failed.get());
+        if (failed.get() > 0) {
+            System.err.println(line);
+        } else {
+            System.out.println(line);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of worker threads plus a count of outstanding tasks. Tasks may submit further tasks (a directory
+ * listing submits its files and sub directories), and {@link #await()} returns once every task, including the ones
+ * submitted along the way, has finished.
+ *
+ * Tasks submitted with a size are scheduled to keep the whole job short rather than each file quick: tasks without a
+ * size, such as listings and directory creation, always run first so the tree is discovered early, then the
+ * largest file is started first so no huge file is left running alone at the end. With three or more workers, one
+ * of them takes the smallest files instead, so per-file command overhead overlaps the bulk transfers. Every worker
+ * pulls its next task only when it is free, so work rebalances itself as transfers finish.
+ *
+ * The workers block on a lock and condition rather than a monitor, so they can also be virtual threads, which
+ * unmount from their carrier while waiting instead of pinning it.
+ */
+public class WorkQueue {
+    /**
+     * A task and the number of bytes it moves, ordered by size and, for equal sizes, by submission.
+     */
+    private static class SizedTask implements Comparable<SizedTask> {
+        final Runnable task;
+        final long size;
+        final long sequence;
+
+        SizedTask(Runnable task, long size, long sequence) {
+            this.task = task;
+            this.size = size;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(SizedTask other) {
+            if (size != other.size) {
+                return size < other.size ? -1 : 1;
+            }
+            // the earliest of equal sizes sorts last, where the largest-first workers take from
+            return Long.compare(other.sequence, sequence);
+        }
+    }
+
+    private final Thread[] workers;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<Runnable> ordered = new ArrayDeque<Runnable>();
+    private final TreeSet<SizedTask> sized = new TreeSet<SizedTask>();
+    private long sequence;
+    private long pending;
+    private boolean shutdown;
+
+    /**
+     * @param threads
+     *          Number of worker threads, normally the number of sessions in the pool.
+     */
+    public WorkQueue(int threads) {
+        this(threads, null);
+    }
+
+    /**
+     * @param threads
+     *          Number of worker threads, normally the number of sessions in the pool.
+     * @param threadFactory
+     *          Creates the workers, e.g. as virtual threads, or null for daemon platform threads.
+     */
+    public WorkQueue(int threads, ThreadFactory threadFactory) {
+        if (threadFactory == null) {
+            final AtomicInteger count = new AtomicInteger();
+            threadFactory = r -> {
+                Thread t = new Thread(r, "transfer-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            };
+        }
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final boolean smallestFirst = threads >= 3 && i == threads - 1;
+            workers[i] = threadFactory.newThread(() -> work(smallestFirst));
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues a task to be run on one of the workers, ahead of every task submitted with a size.
+     *
+     * @param task
+     *          The work to run. It is expected to report its own failures.
+     */
+    public void submit(Runnable task) {
+        submit(task, -1);
+    }
+
+    /**
+     * Queues a task to be run on one of the workers, scheduled by the number of bytes it moves.
+     *
+     * @param task
+     *          The work to run. It is expected to report its own failures.
+     * @param size
+     *          Number of bytes the task transfers, or -1 if unknown, which queues it like {@link #submit(Runnable)}.
+     */
+    public void submit(Runnable task, long size) {
+        lock.lock();
+        try {
+            if (size < 0) {
+                ordered.add(task);
+            } else {
+                sized.add(new SizedTask(task, size, sequence++));
+            }
+            pending++;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for every submitted task to finish, then stops the worker threads.
+     *
+     * @throws InterruptedIOException
+     *          if the calling thread was interrupted while waiting.
+     */
+    public void await() throws InterruptedIOException {
+        lock.lock();
+        try {
+            while (pending > 0) {
+                changed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for transfers to finish.");
+        } finally {
+            shutdown = true;
+            changed.signalAll();
+            lock.unlock();
+        }
+    }
+
+    private void work(boolean smallestFirst) {
+        Runnable task;
+        while ((task = next(smallestFirst)) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("COULD NOT finish a transfer task: " + e);
+            } finally {
+                lock.lock();
+                try {
+                    if (--pending == 0) {
+                        changed.signalAll();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return  The next task for a worker, or null once the queue has been shut down
+     */
+    private Runnable next(boolean smallestFirst) {
+        lock.lock();
+        try {
+            while (true) {
+                if (!ordered.isEmpty()) {
+                    return ordered.poll();
+                }
+                if (!sized.isEmpty()) {
+                    return (smallestFirst ? sized.pollFirst() : sized.pollLast()).task;
+                }
+                if (shutdown) {
+                    return null;
+                }
+                changed.await();
+            }
+        } catch (InterruptedException e) {
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
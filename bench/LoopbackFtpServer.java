@@ -0,0 +1,818 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A minimal FTP server serving a local directory on the loopback interface. It implements just enough of RFC 959
+ * (plus SIZE, MDTM, REST, MLSD, MODE Z and the HASH, XMD5 and XCRC checksums) for the client in this repository to
+ * be exercised end to end, and can inject a fixed per-reply latency and a per-connection bandwidth cap to imitate a
+ * slow link, and dropped connections to imitate an unreliable one. Given a TLS context it also accepts explicit
+ * FTPS (AUTH TLS, PBSZ and PROT).
+ */
+public class LoopbackFtpServer implements Closeable {
+    private final File root;
+    private final ServerSocket serverSocket;
+    private final ExecutorService sessions = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "loopback-ftp");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile long latencyMillis = 0;
+    private volatile long bytesPerSecond = 0;
+    private volatile long dropEvery = 0;
+    private volatile SSLContext tls;
+    private final AtomicLong commands = new AtomicLong();
+
+    /**
+     * Starts a server on an ephemeral loopback port serving the given directory.
+     *
+     * @param root
+     *          Directory exposed as "/" to clients.
+     * @throws IOException
+     *          if the listening socket could not be opened.
+     */
+    public LoopbackFtpServer(File root) throws IOException {
+        this(root, 0);
+    }
+
+    /**
+     * Starts a server on the given loopback port serving the given directory.
+     *
+     * @param root
+     *          Directory exposed as "/" to clients.
+     * @param port
+     *          Port to listen on, 0 for an ephemeral port.
+     * @throws IOException
+     *          if the listening socket could not be opened.
+     */
+    public LoopbackFtpServer(File root, int port) throws IOException {
+        this.root = root.getCanonicalFile();
+        this.serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptLoop, "loopback-ftp-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Delay added before every control-channel reply, imitating the round-trip time of a remote server.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Maximum data-channel throughput per transfer in bytes per second, 0 for unlimited.
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Closes the control connection instead of answering every n-th command received by the server, 0 for never,
+     * imitating a server or network that resets connections.
+     */
+    public void setDropEvery(long dropEvery) {
+        this.dropEvery = dropEvery;
+    }
+
+    /**
+     * TLS context whose key and certificate AUTH TLS switches control connections to, null to refuse AUTH. Its
+     * session cache lets protected data connections resume the session of their control connection.
+     */
+    public void setTls(SSLContext tls) {
+        this.tls = tls;
+    }
+
+    /**
+     * Loads a server TLS context from a PKCS12 key store holding the key and certificate, e.g. one made with
+     * {@code keytool -genkeypair -storetype PKCS12}.
+     */
+    public static SSLContext serverContext(File keyStore, char[] password) throws IOException {
+        try (InputStream is = new FileInputStream(keyStore)) {
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            ks.load(is, password);
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load " + keyStore + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        sessions.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                // replies are single writes, so Nagle would only hold back e.g. the 226 behind an unacknowledged 150
+                socket.setTcpNoDelay(true);
+                sessions.execute(() -> new Session(socket).run());
+            } catch (IOException e) {
+                // the server socket was closed
+            }
+        }
+    }
+
+    /**
+     * One logged-in control connection and its state.
+     */
+    private class Session implements Runnable {
+        private Socket control;
+        private BufferedReader in;
+        private Writer out;
+        private String cwd = "/";
+        private ServerSocket passive;
+        private InetSocketAddress active;
+        private long restartOffset = 0;
+        private String renameFrom;
+        private String hashAlgorithm = "SHA-256";
+        private int deflateLevel = 0;
+        private int modeZLevel = Deflater.DEFAULT_COMPRESSION;
+        private boolean protectData = false;
+
+        Session(Socket control) {
+            this.control = control;
+        }
+
+        @Override
+        public void run() {
+            try {
+                openControl();
+                reply(220, "Loopback FTP server ready");
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    String cmd = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ROOT);
+                    String arg = space < 0 ? "" : line.substring(space + 1);
+                    long drop = dropEvery;
+                    if (drop > 0 && commands.incrementAndGet() % drop == 0) {
+                        break;
+                    }
+                    if (!handle(cmd, arg)) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // client went away
+            } finally {
+                closeQuietly(passive);
+                closeQuietly(control);
+            }
+        }
+
+        private void openControl() throws IOException {
+            in = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(control.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        private boolean handle(String cmd, String arg) throws IOException {
+            switch (cmd) {
+            case "AUTH":
+                authenticate(arg);
+                break;
+            case "PBSZ":
+                reply(200, "PBSZ=0");
+                break;
+            case "PROT":
+                protect(arg);
+                break;
+            case "USER":
+                reply(331, "Password required");
+                break;
+            case "PASS":
+                reply(230, "Logged in");
+                break;
+            case "SYST":
+                reply(215, "UNIX Type: L8");
+                break;
+            case "FEAT":
+                multiline(211, "Features:", " AUTH TLS", " PBSZ", " PROT", " SIZE", " MDTM", " REST STREAM",
+                        " MLST type*;size*;modify*;", " HASH SHA-256*;SHA-1;MD5;CRC32", " MODE Z", " UTF8");
+                reply(211, "End");
+                break;
+            case "MODE":
+                mode(arg);
+                break;
+            case "TYPE":
+            case "STRU":
+                reply(200, cmd + " set to " + arg);
+                break;
+            case "OPTS":
+                options(arg);
+                break;
+            case "HASH":
+                hash(arg, hashAlgorithm, true);
+                break;
+            case "XMD5":
+                hash(arg, "MD5", false);
+                break;
+            case "XCRC":
+                hash(arg, "CRC32", false);
+                break;
+            case "NOOP":
+                reply(200, "NOOP ok");
+                break;
+            case "PWD":
+                reply(257, "\"" + cwd + "\" is the current directory");
+                break;
+            case "CWD":
+                changeDirectory(arg);
+                break;
+            case "CDUP":
+                changeDirectory("..");
+                break;
+            case "PASV":
+                enterPassive();
+                break;
+            case "PORT":
+                enterActive(arg);
+                break;
+            case "REST":
+                restartOffset = Long.parseLong(arg.trim());
+                reply(350, "Restarting at " + restartOffset);
+                break;
+            case "LIST":
+                list(arg, false);
+                break;
+            case "MLSD":
+                list(arg, true);
+                break;
+            case "MLST":
+                machineInfo(arg);
+                break;
+            case "NLST":
+                nameList(arg);
+                break;
+            case "RETR":
+                retrieve(arg);
+                break;
+            case "STOR":
+                store(arg, false);
+                break;
+            case "APPE":
+                store(arg, true);
+                break;
+            case "SIZE":
+                size(arg);
+                break;
+            case "MDTM":
+                modificationTime(arg);
+                break;
+            case "DELE":
+                simple(resolve(arg).isFile() && resolve(arg).delete(), 250, "File deleted");
+                break;
+            case "MKD":
+                simple(resolve(arg).mkdir(), 257, "\"" + arg + "\" created");
+                break;
+            case "RMD":
+                simple(resolve(arg).isDirectory() && resolve(arg).delete(), 250, "Directory removed");
+                break;
+            case "RNFR":
+                renameFrom = arg;
+                reply(350, "Ready for RNTO");
+                break;
+            case "RNTO":
+                simple(renameFrom != null && resolve(renameFrom).renameTo(resolve(arg)), 250, "Renamed");
+                break;
+            case "QUIT":
+                reply(221, "Bye");
+                return false;
+            default:
+                reply(502, cmd + " not implemented");
+            }
+            return true;
+        }
+
+        private void simple(boolean success, int code, String message) throws IOException {
+            if (success) {
+                reply(code, message);
+            } else {
+                reply(550, "Requested action not taken");
+            }
+        }
+
+        private void changeDirectory(String arg) throws IOException {
+            File dir = resolve(arg);
+            if (dir.isDirectory()) {
+                cwd = virtualPath(dir);
+                reply(250, "Directory changed to " + cwd);
+            } else {
+                reply(550, "No such directory");
+            }
+        }
+
+        private void enterPassive() throws IOException {
+            closeQuietly(passive);
+            active = null;
+            passive = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            int port = passive.getLocalPort();
+            reply(227, "Entering Passive Mode (127,0,0,1," + (port >> 8) + "," + (port & 0xff) + ")");
+        }
+
+        private void enterActive(String arg) throws IOException {
+            String[] parts = arg.trim().split(",");
+            String host = parts[0] + "." + parts[1] + "." + parts[2] + "." + parts[3];
+            int port = (Integer.parseInt(parts[4]) << 8) + Integer.parseInt(parts[5]);
+            closeQuietly(passive);
+            passive = null;
+            active = new InetSocketAddress(host, port);
+            reply(200, "PORT command successful");
+        }
+
+        private void authenticate(String arg) throws IOException {
+            SSLContext context = tls;
+            if (context == null || !(arg.trim().equalsIgnoreCase("TLS") || arg.trim().equalsIgnoreCase("SSL"))) {
+                reply(504, "AUTH " + arg + " not supported");
+                return;
+            }
+            reply(234, "AUTH " + arg + " successful");
+            control = secure(context, control);
+            openControl();
+        }
+
+        private void protect(String arg) throws IOException {
+            String level = arg.trim().toUpperCase(Locale.ROOT);
+            if (!(control instanceof SSLSocket) || !(level.equals("P") || level.equals("C"))) {
+                reply(536, "PROT " + arg + " not supported");
+                return;
+            }
+            protectData = level.equals("P");
+            reply(200, "PROT now " + (protectData ? "Private" : "Clear"));
+        }
+
+        private Socket openData() throws IOException {
+            Socket socket;
+            if (passive != null) {
+                try {
+                    socket = passive.accept();
+                } finally {
+                    closeQuietly(passive);
+                    passive = null;
+                }
+            } else if (active != null) {
+                socket = new Socket();
+                socket.connect(active);
+                active = null;
+            } else {
+                throw new IOException("no data connection");
+            }
+            if (!protectData) {
+                return socket;
+            }
+            // the server side of the handshake is the same in active mode, as FTPS requires
+            socket.setTcpNoDelay(true);
+            return secure(tls, socket);
+        }
+
+        private Socket secure(SSLContext context, Socket socket) throws IOException {
+            SSLSocket secure = (SSLSocket) context.getSocketFactory().createSocket(socket, null, socket.getPort(),
+                    true);
+            secure.setUseClientMode(false);
+            try {
+                secure.startHandshake();
+            } catch (IOException e) {
+                closeQuietly(secure);
+                throw e;
+            }
+            return secure;
+        }
+
+        private void list(String arg, boolean machine) throws IOException {
+            File dir = resolve(stripOptions(arg));
+            if (!dir.exists()) {
+                reply(450, "No such file or directory");
+                return;
+            }
+            File[] entries = dir.isDirectory() ? dir.listFiles() : new File[] { dir };
+            Arrays.sort(entries);
+            reply(150, "Opening data connection");
+            try (Socket data = openData(); Writer w = new OutputStreamWriter(dataOutput(data),
+                    StandardCharsets.UTF_8)) {
+                for (File f : entries) {
+                    w.write(machine ? machineFact(f) : unixLine(f));
+                    w.write("\r\n");
+                }
+            }
+            reply(226, "Transfer complete");
+        }
+
+        private void machineInfo(String arg) throws IOException {
+            File file = resolve(arg.trim().isEmpty() ? "." : arg);
+            if (!file.exists()) {
+                reply(550, "No such file or directory");
+                return;
+            }
+            multiline(250, "Listing " + arg, " " + machineFact(file));
+            reply(250, "End");
+        }
+
+        private void nameList(String arg) throws IOException {
+            File dir = resolve(stripOptions(arg));
+            String[] names = dir.isDirectory() ? dir.list() : new String[0];
+            Arrays.sort(names);
+            reply(150, "Opening data connection");
+            try (Socket data = openData(); Writer w = new OutputStreamWriter(dataOutput(data),
+                    StandardCharsets.UTF_8)) {
+                for (String name : names) {
+                    w.write(name + "\r\n");
+                }
+            }
+            reply(226, "Transfer complete");
+        }
+
+        private void retrieve(String arg) throws IOException {
+            File file = resolve(arg);
+            long offset = restartOffset;
+            restartOffset = 0;
+            if (!file.isFile()) {
+                reply(550, "No such file");
+                return;
+            }
+            reply(150, "Opening data connection for " + arg);
+            try (Socket data = openData(); RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.seek(offset);
+                OutputStream os = dataOutput(data);
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                long start = System.nanoTime(), sent = 0;
+                while ((n = raf.read(buffer)) > 0) {
+                    os.write(buffer, 0, n);
+                    sent += n;
+                    if (deflateLevel == 0) {
+                        throttle(start, sent);
+                    }
+                }
+                os.close();
+            } catch (IOException e) {
+                reply(426, "Transfer aborted");
+                return;
+            }
+            reply(226, "Transfer complete");
+        }
+
+        private void store(String arg, boolean append) throws IOException {
+            File file = resolve(arg);
+            long offset = restartOffset;
+            restartOffset = 0;
+            if (file.getParentFile() == null || !file.getParentFile().isDirectory()) {
+                reply(553, "No such directory");
+                return;
+            }
+            reply(150, "Opening data connection for " + arg);
+            try (Socket data = openData(); RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (append) {
+                    raf.seek(raf.length());
+                } else {
+                    raf.setLength(offset);
+                    raf.seek(offset);
+                }
+                InputStream is = dataInput(data);
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                long start = System.nanoTime(), received = 0;
+                while ((n = is.read(buffer)) > 0) {
+                    raf.write(buffer, 0, n);
+                    received += n;
+                    if (deflateLevel == 0) {
+                        throttle(start, received);
+                    }
+                }
+                is.close();
+            } catch (IOException e) {
+                reply(426, "Transfer aborted");
+                return;
+            }
+            reply(226, "Transfer complete");
+        }
+
+        private void size(String arg) throws IOException {
+            File file = resolve(arg);
+            if (file.isFile()) {
+                reply(213, Long.toString(file.length()));
+            } else {
+                reply(550, "No such file");
+            }
+        }
+
+        private void modificationTime(String arg) throws IOException {
+            File file = resolve(arg);
+            if (file.exists()) {
+                reply(213, timestamp(file.lastModified()));
+            } else {
+                reply(550, "No such file");
+            }
+        }
+
+        private void mode(String arg) throws IOException {
+            String mode = arg.trim().toUpperCase(Locale.ROOT);
+            if (mode.equals("S")) {
+                deflateLevel = 0;
+            } else if (mode.equals("Z")) {
+                deflateLevel = modeZLevel;
+            } else {
+                reply(504, "Mode " + arg + " not supported");
+                return;
+            }
+            reply(200, "MODE set to " + mode);
+        }
+
+        /**
+         * The stream a data connection is written through: deflated in MODE Z, where the bandwidth cap applies to
+         * the compressed bytes on the wire.
+         */
+        private OutputStream dataOutput(Socket data) throws IOException {
+            OutputStream os = data.getOutputStream();
+            if (deflateLevel == 0) {
+                return os;
+            }
+            final long start = System.nanoTime();
+            OutputStream wire = new FilterOutputStream(os) {
+                private long sent;
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    sent += len;
+                    throttle(start, sent);
+                }
+            };
+            final Deflater deflater = new Deflater(deflateLevel);
+            return new DeflaterOutputStream(wire, deflater, 64 * 1024) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        /**
+         * The stream a data connection is read through: inflated in MODE Z, throttled on the compressed bytes.
+         */
+        private InputStream dataInput(Socket data) throws IOException {
+            InputStream is = data.getInputStream();
+            if (deflateLevel == 0) {
+                return is;
+            }
+            final long start = System.nanoTime();
+            InputStream wire = new FilterInputStream(is) {
+                private long received;
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = in.read(b, off, len);
+                    if (n > 0) {
+                        received += n;
+                        throttle(start, received);
+                    }
+                    return n;
+                }
+            };
+            final Inflater inflater = new Inflater();
+            return new InflaterInputStream(wire, inflater, 64 * 1024) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+
+        private void options(String arg) throws IOException {
+            String[] words = arg.trim().split("\\s+");
+            if (words.length == 4 && words[0].equalsIgnoreCase("MODE") && words[1].equalsIgnoreCase("Z")
+                    && words[2].equalsIgnoreCase("LEVEL") && words[3].matches("[0-9]")) {
+                modeZLevel = Integer.parseInt(words[3]);
+                if (deflateLevel != 0) {
+                    deflateLevel = modeZLevel;
+                }
+                reply(200, "MODE Z LEVEL set to " + modeZLevel);
+                return;
+            }
+            if (words.length == 2 && words[0].equalsIgnoreCase("HASH")
+                    && Arrays.asList("SHA-256", "SHA-1", "MD5", "CRC32").contains(words[1].toUpperCase(Locale.ROOT))) {
+                hashAlgorithm = words[1].toUpperCase(Locale.ROOT);
+                reply(200, hashAlgorithm);
+            } else {
+                reply(501, "Unsupported option");
+            }
+        }
+
+        /**
+         * Answers HASH in the format of draft-bryan-ftpext-hash, and XMD5 and XCRC with the bare digest.
+         */
+        private void hash(String arg, String algorithm, boolean draft) throws IOException {
+            File file = resolve(arg);
+            if (!file.isFile()) {
+                reply(550, "No such file");
+                return;
+            }
+            String digest;
+            try (InputStream is = new FileInputStream(file)) {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                if (algorithm.equals("CRC32")) {
+                    CRC32 crc = new CRC32();
+                    while ((n = is.read(buffer)) > 0) {
+                        crc.update(buffer, 0, n);
+                    }
+                    digest = String.format("%08x", crc.getValue());
+                } else {
+                    MessageDigest md = MessageDigest.getInstance(algorithm);
+                    while ((n = is.read(buffer)) > 0) {
+                        md.update(buffer, 0, n);
+                    }
+                    StringBuilder hex = new StringBuilder();
+                    for (byte b : md.digest()) {
+                        hex.append(String.format("%02x", b));
+                    }
+                    digest = hex.toString();
+                }
+            } catch (NoSuchAlgorithmException e) {
+                reply(504, "Unsupported algorithm");
+                return;
+            }
+            if (draft) {
+                reply(213, algorithm + " 0-" + file.length() + " " + digest + " " + arg);
+            } else {
+                reply(250, digest);
+            }
+        }
+
+        private void throttle(long start, long bytes) {
+            long cap = bytesPerSecond;
+            if (cap <= 0) {
+                return;
+            }
+            long due = start + bytes * 1000000000L / cap;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private String stripOptions(String arg) {
+            String path = arg.trim();
+            while (path.startsWith("-")) {
+                int space = path.indexOf(' ');
+                path = space < 0 ? "" : path.substring(space + 1).trim();
+            }
+            return path;
+        }
+
+        private File resolve(String path) {
+            String p = path.trim();
+            String virtual = p.startsWith("/") ? p : (cwd.endsWith("/") ? cwd : cwd + "/") + p;
+            File file = new File(root, virtual);
+            try {
+                File canonical = file.getCanonicalFile();
+                return canonical.getPath().startsWith(root.getPath()) ? canonical : root;
+            } catch (IOException e) {
+                return root;
+            }
+        }
+
+        private String virtualPath(File file) {
+            String path = file.getPath().substring(root.getPath().length()).replace(File.separatorChar, '/');
+            return path.isEmpty() ? "/" : path;
+        }
+
+        private void multiline(int code, String... lines) throws IOException {
+            pause();
+            for (String line : lines) {
+                out.write(line.startsWith(" ") ? line : code + "-" + line);
+                out.write("\r\n");
+            }
+            out.flush();
+        }
+
+        private void reply(int code, String message) throws IOException {
+            pause();
+            out.write(code + " " + message + "\r\n");
+            out.flush();
+        }
+
+        private void pause() {
+            if (latencyMillis > 0) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static String unixLine(File f) {
+        SimpleDateFormat format = new SimpleDateFormat("MMM dd HH:mm", Locale.US);
+        return (f.isDirectory() ? "drwxr-xr-x" : "-rw-r--r--") + " 1 ftp ftp " + f.length() + " "
+                + format.format(new Date(f.lastModified())) + " " + f.getName();
+    }
+
+    private static String machineFact(File f) {
+        return "type=" + (f.isDirectory() ? "dir" : "file") + ";size=" + f.length() + ";modify="
+                + timestamp(f.lastModified()) + "; " + f.getName();
+    }
+
+    private static String timestamp(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Serves a directory until the process is killed:
+     * {@code <directory> [port] [latency-ms] [bytes-per-second] [drop-every-n-commands] [pkcs12-key-store password]}.
+     */
+    public static void main(String[] args) throws Exception {
+        LoopbackFtpServer server = new LoopbackFtpServer(new File(args[0]),
+                args.length > 1 ? Integer.parseInt(args[1]) : 0);
+        if (args.length > 2) {
+            server.setLatencyMillis(Long.parseLong(args[2]));
+        }
+        if (args.length > 3) {
+            server.setBytesPerSecond(Long.parseLong(args[3]));
+        }
+        if (args.length > 4) {
+            server.setDropEvery(Long.parseLong(args[4]));
+        }
+        if (args.length > 6) {
+            server.setTls(serverContext(new File(args[5]), args[6].toCharArray()));
+        }
+        System.out.println("Serving " + server.getRoot() + " on port " + server.getPort());
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,187 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Random;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPReply;
+
+/**
+ * Measures what TLS session resumption saves on FTPS data connections, where every file costs a handshake of its
+ * own. A LoopbackFtpServer with a throwaway self-signed certificate serves a directory of small files, which is
+ * downloaded over explicit FTPS with PROT P with resumption on and off, on one session and on several. Each
+ * configuration starts from an empty session cache, is run once to warm up and then timed over several iterations;
+ * the report gives the time per download, files per second and the count, resumed count and duration percentiles
+ * in microseconds of its handshakes, control connections included.
+ *
+ * The certificate is made with the JDK's keytool, which must be next to the running java.
+ *
+ * Usage: {@code TlsBenchmark [latency-ms] [iterations] [files] [key-algorithm]}, where the key algorithm is one
+ * keytool accepts, e.g. RSA (the default, 2048 bits) or EC.
+ */
+public class TlsBenchmark {
+    private static final int FILE_BYTES = 1024;
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+
+    public static void main(String[] args) throws Exception {
+        long latencyMillis = args.length > 0 ? Long.parseLong(args[0]) : 0;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int files = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        String keyAlgorithm = args.length > 3 ? args[3] : "RSA";
+        // Every iteration must go to the server, not to the listings of the previous one
+        Assn3.applySetting("cachettl", "0");
+
+        File work = File.createTempFile("ftps-bench", "");
+        work.delete();
+        File serverRoot = new File(work, "server");
+        File download = new File(work, "download");
+        File small = new File(serverRoot, "small");
+        small.mkdirs();
+        for (int i = 0; i < files; i++) {
+            writeFile(new File(small, "f" + i), FILE_BYTES);
+        }
+
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        PrintStream quiet = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+
+        LoopbackFtpServer server = new LoopbackFtpServer(serverRoot);
+        try {
+            File keyStore = new File(work, "server.p12");
+            generateKey(keyStore, keyAlgorithm);
+            server.setTls(LoopbackFtpServer.serverContext(keyStore, PASSWORD));
+            server.setLatencyMillis(latencyMillis);
+
+            out.printf("latency %d ms, %d files of %d bytes, %s key, %d iteration(s)%n", latencyMillis, files,
+                    FILE_BYTES, keyAlgorithm, iterations);
+            out.printf("%-22s %10s %10s  %s%n", "configuration", "ms/op", "files/s", "handshakes (us)");
+            for (int sessions : new int[] { 1, 4 }) {
+                for (boolean reuse : new boolean[] { true, false }) {
+                    Assn3.applySetting("sessions", Integer.toString(sessions));
+                    // a context of its own starts the configuration with an empty session cache
+                    SSLContext context = clientContext(keyStore);
+                    TransferMetrics metrics = new TransferMetrics();
+                    SecureFTPClient ftp = new SecureFTPClient(context, metrics);
+                    ftp.setSessionReuse(reuse);
+                    SessionPool pool = new SessionPool("127.0.0.1", server.getPort(), "bench", "bench", metrics);
+                    pool.setSecure(context);
+                    pool.setSessionReuse(reuse);
+                    long nanos = 0;
+                    try {
+                        connect(ftp, server.getPort());
+                        for (int i = -1; i < iterations; i++) {
+                            delete(download);
+                            download.mkdirs();
+                            System.setOut(quiet);
+                            System.setErr(quiet);
+                            long start = System.nanoTime();
+                            try {
+                                Assn3.downloadDirectory(ftp, pool, "/small", download.getPath());
+                            } finally {
+                                long elapsed = System.nanoTime() - start;
+                                System.setOut(out);
+                                System.setErr(err);
+                                // The first run only warms up the JIT and opens the pooled sessions
+                                if (i >= 0) {
+                                    nanos += elapsed;
+                                }
+                            }
+                        }
+                    } finally {
+                        pool.close();
+                        if (ftp.isConnected()) {
+                            ftp.logout();
+                            ftp.disconnect();
+                        }
+                    }
+                    double seconds = nanos / 1e9 / iterations;
+                    out.printf("%-22s %10.1f %10.1f  %s%n",
+                            "sessions " + sessions + ", reuse " + (reuse ? "on" : "off"), seconds * 1000,
+                            files / seconds, metrics.getTlsHandshakeLatency());
+                }
+            }
+        } finally {
+            server.close();
+            delete(work);
+        }
+    }
+
+    /**
+     * Makes a self-signed certificate for 127.0.0.1 and localhost with keytool.
+     */
+    private static void generateKey(File keyStore, String algorithm) throws IOException, InterruptedException {
+        File keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool");
+        Process process = new ProcessBuilder(keytool.getPath(), "-genkeypair", "-alias", "server", "-keyalg",
+                algorithm, "-dname", "CN=localhost", "-ext", "san=ip:127.0.0.1,dns:localhost", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keyStore.getPath(), "-storepass", new String(PASSWORD),
+                "-keypass", new String(PASSWORD)).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        if (process.waitFor() != 0 || !keyStore.isFile()) {
+            throw new IOException("keytool could not make a " + algorithm + " key.");
+        }
+    }
+
+    /**
+     * A client context that trusts the certificate of the benchmark server only.
+     */
+    private static SSLContext clientContext(File keyStore) throws IOException {
+        try (InputStream is = new FileInputStream(keyStore)) {
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            ks.load(is, PASSWORD);
+            KeyStore trusted = KeyStore.getInstance("PKCS12");
+            trusted.load(null, null);
+            trusted.setCertificateEntry("server", ks.getCertificate("server"));
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(trusted);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, tmf.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot trust " + keyStore + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void connect(SecureFTPClient ftp, int port) throws IOException {
+        ftp.connect("127.0.0.1", port);
+        if (!FTPReply.isPositiveCompletion(ftp.getReplyCode()) || !ftp.login("bench", "bench")) {
+            throw new IOException("Benchmark server refused the session.");
+        }
+        ftp.setFileType(FTP.BINARY_FILE_TYPE);
+        ftp.enterLocalPassiveMode();
+    }
+
+    private static void writeFile(File file, int size) throws IOException {
+        byte[] buffer = new byte[size];
+        new Random(file.getName().hashCode()).nextBytes(buffer);
+        try (OutputStream os = new FileOutputStream(file)) {
+            os.write(buffer);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
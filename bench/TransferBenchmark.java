@@ -0,0 +1,356 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+/**
+ * Measures the transfer paths of Assn3 against a LoopbackFtpServer running in the same process, so a change can be
+ * checked for whether it helps or hurts. Each operation is run once to warm up and then timed over several
+ * iterations; the report gives the mean time, throughput, files per second and the bytes allocated by the
+ * benchmark thread per operation.
+ *
+ * Workloads: one huge file, many tiny files in one directory, a deep tree of small directories, and a mixed
+ * directory whose few large files are listed after its many tiny ones. The server can be slowed down with a
+ * per-reply latency and a bandwidth cap to imitate a remote link.
+ *
+ * Usage: {@code TransferBenchmark [latency-ms] [bytes-per-second] [iterations] [set-option value ...]}, where the
+ * trailing pairs are passed to the client's set command, e.g. {@code sessions 4}.
+ */
+public class TransferBenchmark {
+    private static final int HUGE_FILE_BYTES = 64 * 1024 * 1024;
+    private static final int TINY_FILES = 2000;
+    private static final int TINY_FILE_BYTES = 1024;
+    private static final int TREE_DEPTH = 5;
+    private static final int TREE_FANOUT = 3;
+    private static final int TREE_FILES_PER_DIR = 2;
+    private static final int TREE_FILE_BYTES = 4096;
+    private static final int MIXED_LARGE_FILES = 3;
+    private static final int MIXED_LARGE_FILE_BYTES = 16 * 1024 * 1024;
+    private static final int MIXED_SMALL_FILES = 500;
+
+    /**
+     * One timed operation. Preparation done in setUp is not part of the measurement.
+     */
+    private abstract static class Operation {
+        final String name;
+        final long bytes;
+        final int files;
+
+        Operation(String name, long bytes, int files) {
+            this.name = name;
+            this.bytes = bytes;
+            this.files = files;
+        }
+
+        void setUp() throws IOException {
+        }
+
+        abstract void run() throws IOException;
+    }
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        long latencyMillis = args.length > 0 ? Long.parseLong(args[0]) : 0;
+        long bytesPerSecond = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        for (int i = 3; i + 1 < args.length; i += 2) {
+            if (!Assn3.applySetting(args[i], args[i + 1])) {
+                System.err.println("Unknown setting or invalid value: " + args[i] + " " + args[i + 1]);
+                System.exit(1);
+            }
+        }
+        // Every iteration must go to the server, not to the listings of the previous one
+        Assn3.applySetting("cachettl", "0");
+
+        File work = File.createTempFile("ftp-bench", "");
+        work.delete();
+        final File serverRoot = new File(work, "server");
+        final File local = new File(work, "local");
+        final File download = new File(work, "download");
+        serverRoot.mkdirs();
+        local.mkdirs();
+
+        System.out.println("Creating workloads in " + work);
+        writeFile(new File(serverRoot, "huge.bin"), HUGE_FILE_BYTES);
+        writeFile(new File(local, "huge.bin"), HUGE_FILE_BYTES);
+        for (File root : new File[] { serverRoot, local }) {
+            File tiny = new File(root, "tiny");
+            tiny.mkdirs();
+            for (int i = 0; i < TINY_FILES; i++) {
+                writeFile(new File(tiny, "f" + i), TINY_FILE_BYTES);
+            }
+            writeTree(new File(root, "deep"), TREE_DEPTH);
+            File mixed = new File(root, "mixed");
+            mixed.mkdirs();
+            for (int i = 0; i < MIXED_SMALL_FILES; i++) {
+                writeFile(new File(mixed, "a" + i), TINY_FILE_BYTES);
+            }
+            for (int i = 0; i < MIXED_LARGE_FILES; i++) {
+                writeFile(new File(mixed, "z" + i), MIXED_LARGE_FILE_BYTES);
+            }
+        }
+        final int treeFiles = countFiles(new File(local, "deep"));
+        final long treeBytes = (long) treeFiles * TREE_FILE_BYTES;
+        final int mixedFiles = MIXED_SMALL_FILES + MIXED_LARGE_FILES;
+        final long mixedBytes = (long) MIXED_SMALL_FILES * TINY_FILE_BYTES
+                + (long) MIXED_LARGE_FILES * MIXED_LARGE_FILE_BYTES;
+
+        LoopbackFtpServer server = new LoopbackFtpServer(serverRoot);
+        server.setLatencyMillis(latencyMillis);
+        server.setBytesPerSecond(bytesPerSecond);
+        final FTPClient ftp = connect(server.getPort());
+        final SessionPool pool = new SessionPool("127.0.0.1", server.getPort(), "bench", "bench");
+
+        List<Operation> operations = new ArrayList<Operation>();
+        operations.add(new Operation("get huge file", HUGE_FILE_BYTES, 1) {
+            @Override
+            void setUp() {
+                delete(download);
+                download.mkdirs();
+            }
+
+            @Override
+            void run() throws IOException {
+                Assn3.downloadSingleFile(ftp, "/huge.bin", new File(download, "huge.bin").getPath());
+            }
+        });
+        operations.add(new Operation("put huge file", HUGE_FILE_BYTES, 1) {
+            @Override
+            void setUp() {
+                new File(serverRoot, "uploaded.bin").delete();
+            }
+
+            @Override
+            void run() throws IOException {
+                Assn3.uploadSingleFile(ftp, "/uploaded.bin", new File(local, "huge.bin").getPath());
+            }
+        });
+        operations.add(new Operation("get tiny files", (long) TINY_FILES * TINY_FILE_BYTES, TINY_FILES) {
+            @Override
+            void setUp() {
+                delete(download);
+                download.mkdirs();
+            }
+
+            @Override
+            void run() throws IOException {
+                Assn3.downloadDirectory(ftp, pool, "/tiny", download.getPath());
+            }
+        });
+        operations.add(new Operation("put tiny files", (long) TINY_FILES * TINY_FILE_BYTES, TINY_FILES) {
+            @Override
+            void setUp() {
+                delete(new File(serverRoot, "uploaded"));
+                new File(serverRoot, "uploaded").mkdirs();
+            }
+
+            @Override
+            void run() throws IOException {
+                Assn3.uploadDirectory(ftp, pool, "/uploaded", new File(local, "tiny").getPath());
+            }
+        });
+        operations.add(new Operation("rmdir tiny files", 0, TINY_FILES) {
+            @Override
+            void setUp() throws IOException {
+                delete(new File(serverRoot, "uploaded"));
+                copy(new File(local, "tiny"), new File(serverRoot, "uploaded"));
+            }
+
+            @Override
+            void run() throws IOException {
+                Assn3.removeDirectory(ftp, pool, "/uploaded");
+            }
+        });
+        operations.add(new Operation("get deep tree", treeBytes, treeFiles) {
+            @Override
+            void setUp() {
+                delete(download);
+                download.mkdirs();
+            }
+
+            @Override
+            void run() throws IOException {
+                Assn3.downloadDirectory(ftp, pool, "/deep", download.getPath());
+            }
+        });
+        operations.add(new Operation("put deep tree", treeBytes, treeFiles) {
+            @Override
+            void setUp() {
+                delete(new File(serverRoot, "uploaded"));
+                new File(serverRoot, "uploaded").mkdirs();
+            }
+
+            @Override
+            void run() throws IOException {
+                Assn3.uploadDirectory(ftp, pool, "/uploaded", new File(local, "deep").getPath());
+            }
+        });
+        operations.add(new Operation("rmdir deep tree", 0, treeFiles) {
+            @Override
+            void setUp() throws IOException {
+                delete(new File(serverRoot, "uploaded"));
+                copy(new File(local, "deep"), new File(serverRoot, "uploaded"));
+            }
+
+            @Override
+            void run() throws IOException {
+                Assn3.removeDirectory(ftp, pool, "/uploaded");
+            }
+        });
+
+        operations.add(new Operation("get mixed tree", mixedBytes, mixedFiles) {
+            @Override
+            void setUp() {
+                delete(download);
+                download.mkdirs();
+            }
+
+            @Override
+            void run() throws IOException {
+                Assn3.downloadDirectory(ftp, pool, "/mixed", download.getPath());
+            }
+        });
+        operations.add(new Operation("put mixed tree", mixedBytes, mixedFiles) {
+            @Override
+            void setUp() {
+                delete(new File(serverRoot, "uploaded"));
+                new File(serverRoot, "uploaded").mkdirs();
+            }
+
+            @Override
+            void run() throws IOException {
+                Assn3.uploadDirectory(ftp, pool, "/uploaded", new File(local, "mixed").getPath());
+            }
+        });
+
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        PrintStream quiet = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        out.printf("latency %d ms, bandwidth %s, %d iteration(s)%n", latencyMillis,
+                bytesPerSecond > 0 ? bytesPerSecond + " B/s" : "unlimited", iterations);
+        out.printf("%-18s %12s %12s %12s %16s%n", "operation", "ms/op", "MB/s", "files/s", "alloc B/op");
+        try {
+            for (Operation operation : operations) {
+                long nanos = 0;
+                long allocated = 0;
+                for (int i = -1; i < iterations; i++) {
+                    operation.setUp();
+                    System.setOut(quiet);
+                    System.setErr(quiet);
+                    long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+                    long start = System.nanoTime();
+                    try {
+                        operation.run();
+                    } finally {
+                        long elapsed = System.nanoTime() - start;
+                        long allocatedAfter = threads.getCurrentThreadAllocatedBytes();
+                        System.setOut(out);
+                        System.setErr(err);
+                        // The first run only warms up the JIT and the pooled sessions
+                        if (i >= 0) {
+                            nanos += elapsed;
+                            allocated += allocatedAfter - allocatedBefore;
+                        }
+                    }
+                }
+                double seconds = nanos / 1e9 / iterations;
+                out.printf("%-18s %12.1f %12.2f %12.1f %16d%n", operation.name, seconds * 1000,
+                        operation.bytes / 1048576.0 / seconds, operation.files / seconds, allocated / iterations);
+            }
+        } finally {
+            pool.close();
+            if (ftp.isConnected()) {
+                ftp.logout();
+                ftp.disconnect();
+            }
+            server.close();
+            delete(work);
+        }
+    }
+
+    private static FTPClient connect(int port) throws IOException {
+        FTPClient ftp = new StreamingFTPClient();
+        ftp.connect("127.0.0.1", port);
+        if (!FTPReply.isPositiveCompletion(ftp.getReplyCode()) || !ftp.login("bench", "bench")) {
+            throw new IOException("Benchmark server refused the session.");
+        }
+        ftp.setFileType(FTP.BINARY_FILE_TYPE);
+        ftp.enterLocalPassiveMode();
+        return ftp;
+    }
+
+    private static void writeTree(File dir, int depth) throws IOException {
+        dir.mkdirs();
+        for (int i = 0; i < TREE_FILES_PER_DIR; i++) {
+            writeFile(new File(dir, "f" + i), TREE_FILE_BYTES);
+        }
+        if (depth > 1) {
+            for (int i = 0; i < TREE_FANOUT; i++) {
+                writeTree(new File(dir, "d" + i), depth - 1);
+            }
+        }
+    }
+
+    private static void writeFile(File file, int size) throws IOException {
+        byte[] buffer = new byte[Math.min(size, 1024 * 1024)];
+        Random random = new Random(size);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            for (int written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                os.write(buffer, 0, Math.min(buffer.length, size - written));
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    private static int countFiles(File dir) {
+        int count = 0;
+        for (File f : dir.listFiles()) {
+            count += f.isDirectory() ? countFiles(f) : 1;
+        }
+        return count;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        if (from.isDirectory()) {
+            to.mkdirs();
+            for (File f : from.listFiles()) {
+                copy(f, new File(to, f.getName()));
+            }
+        } else {
+            Files.copy(from.toPath(), to.toPath());
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}